@@ -10,119 +10,34 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.util.JsonSerialization;
 
+import uk.ac.isambard.keycloak.common.Globs;
+import uk.ac.isambard.keycloak.common.ProjectsAttributeCodec;
+import uk.ac.isambard.keycloak.common.ShortNames;
+import uk.ac.isambard.keycloak.common.WaldurBulkhead;
+import uk.ac.isambard.keycloak.common.WaldurExecutor;
+import uk.ac.isambard.keycloak.common.WaldurHedger;
+
 import jakarta.ws.rs.core.Response;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
 import org.jboss.logging.Logger;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class IsambardAuthenticator implements Authenticator {
 
     private static final Logger logger = Logger.getLogger(IsambardAuthenticator.class);
 
-    /**
-     * Converts a standard POSIX Shell globbing pattern into a regular expression
-     * pattern. The result can be used with the standard {@link java.util.regex} API to
-     * recognize strings which match the glob pattern.
-     * <p/>
-     * See also, the POSIX Shell language:
-     * http://pubs.opengroup.org/onlinepubs/009695399/utilities/xcu_chap02.html#tag_02_13_01
-     *
-     * @param pattern A glob pattern.
-     * @return A regex pattern to recognize the given glob pattern.
-     */
-    private static final String convertGlobToRegex(String pattern) {
-        StringBuilder sb = new StringBuilder(pattern.length());
-        int inGroup = 0;
-        int inClass = 0;
-        int firstIndexInClass = -1;
-        char[] arr = pattern.toCharArray();
-        for (int i = 0; i < arr.length; i++) {
-            char ch = arr[i];
-            switch (ch) {
-                case '\\':
-                    if (++i >= arr.length) {
-                        sb.append('\\');
-                    } else {
-                        char next = arr[i];
-                        switch (next) {
-                            case ',':
-                                // escape not needed
-                                break;
-                            case 'Q':
-                            case 'E':
-                                // extra escape needed
-                                sb.append('\\');
-                            default:
-                                sb.append('\\');
-                        }
-                        sb.append(next);
-                    }
-                    break;
-                case '*':
-                    if (inClass == 0)
-                        sb.append(".*");
-                    else
-                        sb.append('*');
-                    break;
-                case '?':
-                    if (inClass == 0)
-                        sb.append('.');
-                    else
-                        sb.append('?');
-                    break;
-                case '[':
-                    inClass++;
-                    firstIndexInClass = i+1;
-                    sb.append('[');
-                    break;
-                case ']':
-                    inClass--;
-                    sb.append(']');
-                    break;
-                case '.':
-                case '(':
-                case ')':
-                case '+':
-                case '|':
-                case '^':
-                case '$':
-                case '@':
-                case '%':
-                    if (inClass == 0 || (firstIndexInClass == i && ch == '^'))
-                        sb.append('\\');
-                    sb.append(ch);
-                    break;
-                case '!':
-                    if (firstIndexInClass == i)
-                        sb.append('^');
-                    else
-                        sb.append('!');
-                    break;
-                case '{':
-                    inGroup++;
-                    sb.append('(');
-                    break;
-                case '}':
-                    inGroup--;
-                    sb.append(')');
-                    break;
-                case ',':
-                    if (inGroup > 0)
-                        sb.append('|');
-                    else
-                        sb.append(',');
-                    break;
-                default:
-                    sb.append(ch);
-            }
-        }
-        return sb.toString();
-    }
-
     private static class ResourceInfo {
         public String name = "";
         public String username = "";
@@ -142,19 +57,384 @@ public class IsambardAuthenticator implements Authenticator {
         public String reason = "";
     }
 
+    /**
+     * User attribute holding the digest of the cached short_name and projects. This
+     * must match the digest written by the Isambard protocol mapper, so that either
+     * plugin can skip writing attributes that the other has already written.
+     */
+    private static final String ATTRIBUTES_DIGEST = "isambard_digest";
+
+    private static String attributesDigest(String short_name, String projects_json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((short_name + "\n" + projects_json).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (Exception e) {
+            // SHA-256 is always available on the JVM
+            throw new IllegalStateException("Could not create attributes digest", e);
+        }
+    }
+
+    /**
+     * User session notes recording the digest of the status fetched from Waldur at
+     * login, and when it was fetched (epoch milliseconds). The Isambard protocol
+     * mapper uses these to build the first tokens of the session from the cached
+     * attributes, rather than fetching the same status from Waldur again.
+     */
+    private static final String STATUS_DIGEST_NOTE = "isambard_status_digest";
+    private static final String STATUS_TIME_NOTE = "isambard_status_time";
+
+    /**
+     * Whether the projects attribute is written in the compact form (see
+     * ProjectsAttributeCodec), as set by the factory
+     */
+    static volatile boolean compactProjects;
+
+    /**
+     * User attribute holding when Waldur last said the user is active (epoch
+     * milliseconds). This is only kept when the fallback rejection policy is used,
+     * which only lets in users whose last check is recent enough.
+     */
+    private static final String CHECKED_AT = "isambard_checked_at";
+
+    /** How often CHECKED_AT is rewritten for a user who keeps logging in */
+    private static final long CHECKED_AT_GRANULARITY_MILLIS = 60_000L;
+
+    /** Limits the concurrent calls to Waldur, as configured by the factory */
+    static volatile WaldurBulkhead waldurBulkhead = new WaldurBulkhead("isambard.authenticator.",
+            20, 100, 2000L, WaldurBulkhead.REJECT_FAIL_FAST);
+
+    /**
+     * How long after Waldur last said a user is active they can still be let in by
+     * the fallback rejection policy, as configured by the factory
+     */
+    static volatile long fallbackMaxAgeMillis = 3600_000L;
+
+    /**
+     * Returns the time in milliseconds since CHECKED_AT was set for the user, or -1
+     * if it is not set or not valid
+     */
+    private static long checkedAge(UserModel user) {
+        String checked_at = user.getFirstAttribute(CHECKED_AT);
+
+        if (checked_at == null) {
+            return -1;
+        }
+
+        try {
+            long age = System.currentTimeMillis() - Long.parseLong(checked_at);
+            return age < 0 ? -1 : age;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Records that Waldur has just said the user is active, if the fallback
+     * rejection policy needs it, at most once every CHECKED_AT_GRANULARITY_MILLIS
+     */
+    private static void recordChecked(UserModel user) {
+        if (!WaldurBulkhead.REJECT_FALLBACK.equals(waldurBulkhead.getRejectionPolicy())) {
+            return;
+        }
+
+        long age = checkedAge(user);
+
+        if (age < 0 || age >= CHECKED_AT_GRANULARITY_MILLIS) {
+            user.setSingleAttribute(CHECKED_AT, String.valueOf(System.currentTimeMillis()));
+        }
+    }
+
+    /** Hedges slow calls to Waldur, as configured by the factory and off by default */
+    static volatile WaldurHedger waldurHedger = new WaldurHedger("isambard.authenticator.", 0, 0.05, 50L);
+
+    /** Records and logs the login decisions, as configured by the factory */
+    static volatile LoginDecisionLog decisionLog = new LoginDecisionLog(1024, 1.0, 100);
+
+    /** Returns the record of recent login decisions on this node */
+    public static LoginDecisionLog getDecisionLog() {
+        return decisionLog;
+    }
+
+    /**
+     * Records the decision made for the user of the context, with the status from
+     * Waldur if it was called
+     *
+     * @param detail what matched in the branch, e.g. "domain=example.org", or null
+     * @param projects the number of projects the user has, or -1 if not known
+     */
+    private static void decided(AuthenticationFlowContext context, long start, String branch, boolean success,
+                                AuthorisationStatus access, String detail, int projects) {
+        UserModel user = context.getUser();
+
+        decisionLog.record(start, context.getRealm().getName(), user.getEmail(), user.getUsername(), branch,
+                success, access == null ? null : access.status,
+                access == null || success || access.reason == null || access.reason.isEmpty() ? null : access.reason,
+                detail, projects);
+    }
+
+    /**
+     * A lookup of the status of a user that the Isambard prefetch authenticator
+     * started as soon as the user was identified, before this authenticator ran
+     */
+    private static final class Prefetch {
+        private final String email;
+        private final String waldur_api_url;
+        private final long started_at;
+        private final CompletableFuture<AuthorisationStatus> status;
+
+        private Prefetch(String email, String waldur_api_url, long started_at,
+                         CompletableFuture<AuthorisationStatus> status) {
+            this.email = email;
+            this.waldur_api_url = waldur_api_url;
+            this.started_at = started_at;
+            this.status = status;
+        }
+    }
+
+    /** How long after it was started a prefetched status can be used */
+    private static final long PREFETCH_MAX_AGE_MILLIS = 60_000L;
+
+    /** The number of prefetches held at which expired ones are removed, and the most that are held */
+    private static final int PREFETCH_CLEAN_SIZE = 1000;
+    private static final int PREFETCH_MAX_SIZE = 10000;
+
+    /**
+     * Prefetches that have not been used yet, by authentication session and tab.
+     * These are only held on the node that started them, so a login that moves to
+     * another node just fetches the status as usual.
+     */
+    private static final Map<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+    private static String prefetchKey(AuthenticationFlowContext context) {
+        return context.getAuthenticationSession().getParentSession().getId() + "."
+                + context.getAuthenticationSession().getTabId();
+    }
+
+    private static void recordPrefetch(String result) {
+        Counter.builder("isambard.authenticator.waldur.prefetch")
+                .description("Waldur statuses prefetched before the Isambard authenticator, by what became of them")
+                .tag("result", result)
+                .register(Metrics.globalRegistry)
+                .increment();
+    }
+
+    /**
+     * Starts looking up the status of the identified user in Waldur in the background,
+     * using the Waldur API of the passed config, so that it is ready by the time this
+     * authenticator runs. This is called by the Isambard prefetch authenticator, and
+     * is skipped if the bulkhead has no permit free, as the lookup is speculative.
+     */
+    void prefetch(AuthenticationFlowContext context, AuthenticatorConfigModel config) {
+        String email = context.getUser().getEmail();
+        String waldur_api_url = config.getConfig().get("waldur.api.url");
+        String waldur_api_key = config.getConfig().get("waldur.api.key");
+
+        if (email == null || waldur_api_url == null || waldur_api_key == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (prefetches.size() >= PREFETCH_CLEAN_SIZE) {
+            // logins that were abandoned before this authenticator ran
+            prefetches.values().removeIf(prefetch -> now - prefetch.started_at > PREFETCH_MAX_AGE_MILLIS);
+        }
+
+        if (prefetches.size() >= PREFETCH_MAX_SIZE) {
+            recordPrefetch("full");
+            return;
+        }
+
+        WaldurBulkhead.Permit permit = waldurBulkhead.tryAcquire(waldur_api_url, context.getRealm().getName());
+
+        if (permit == null) {
+            recordPrefetch("busy");
+            return;
+        }
+
+        CompletableFuture<AuthorisationStatus> status = checkEmailHasAccessAsync(context.getSession(), email,
+                waldur_api_url, waldur_api_key).whenComplete((response, error) -> permit.close());
+
+        prefetches.put(prefetchKey(context), new Prefetch(email, waldur_api_url, now, status));
+        recordPrefetch("started");
+    }
+
+    /**
+     * Returns the status prefetched for this login, waiting for it if it is still in
+     * progress, or null if there is no usable prefetched status
+     */
+    private static AuthorisationStatus takePrefetched(AuthenticationFlowContext context, String email,
+                                                      String waldur_api_url) {
+        Prefetch prefetch = prefetches.remove(prefetchKey(context));
+
+        if (prefetch == null) {
+            return null;
+        }
+
+        if (!prefetch.email.equals(email) || !prefetch.waldur_api_url.equals(waldur_api_url)
+                || System.currentTimeMillis() - prefetch.started_at > PREFETCH_MAX_AGE_MILLIS) {
+            recordPrefetch("stale");
+            return null;
+        }
+
+        boolean ready = prefetch.status.isDone();
+        AuthorisationStatus status;
+
+        try {
+            status = prefetch.status.join();
+        } catch (CompletionException e) {
+            status = null;
+        }
+
+        if (status == null || status.status == null || status.status.isEmpty()) {
+            // the lookup failed, which may have been transient, so look it up again
+            recordPrefetch("failed");
+            return null;
+        }
+
+        recordPrefetch(ready ? "ready" : "waited");
+        return status;
+    }
+
+    /**
+     * Caches the short name and projects on the user, only writing the attributes
+     * that differ. The attribute values are compared as well as the stored digest,
+     * so that an edit to either attribute that leaves the digest alone is put right.
+     *
+     * @return the digest of the cached short name and projects
+     */
+    private static String updateCachedAttributes(UserModel user, String short_name, String projects_json) {
+        String digest = attributesDigest(short_name, projects_json);
+
+        if (digest.equals(user.getFirstAttribute(ATTRIBUTES_DIGEST))
+                && short_name.equals(user.getFirstAttribute("short_name"))
+                && projects_json.equals(ProjectsAttributeCodec.decode(user.getFirstAttribute("projects")))) {
+            return digest;
+        }
+
+        if (!short_name.equals(user.getFirstAttribute("short_name"))) {
+            user.setSingleAttribute("short_name", short_name);
+        }
+
+        String projects_value = compactProjects ? ProjectsAttributeCodec.encode(projects_json) : projects_json;
+
+        if (!projects_value.equals(user.getFirstAttribute("projects"))) {
+            user.setSingleAttribute("projects", projects_value);
+        }
+
+        user.setSingleAttribute(ATTRIBUTES_DIGEST, digest);
+        return digest;
+    }
+
+    /**
+     * Removes the cached short name and projects from the user, if they are set.
+     */
+    private static void clearCachedAttributes(UserModel user) {
+        for (String key : new String[] {"short_name", "projects", ATTRIBUTES_DIGEST, CHECKED_AT}) {
+            if (user.getFirstAttribute(key) != null) {
+                user.removeAttribute(key);
+            }
+        }
+    }
+
     @Override
     public void close() {
     }
 
+    /**
+     * Fetches the status of the email from Waldur, once the bulkhead for the endpoint
+     * and realm has admitted the call. A status that the prefetch authenticator has
+     * already fetched for this login is used instead. If hedging is enabled, the
+     * call is made through the hedger, and each of the calls it makes holds its own
+     * permit until it has finished, even if the other call has already been used.
+     *
+     * @return the status, or null if the bulkhead rejected the call
+     */
+    private AuthorisationStatus fetchStatus(AuthenticationFlowContext context, String email,
+                                            String waldur_api_url, String waldur_api_key) {
+        AuthorisationStatus prefetched = takePrefetched(context, email, waldur_api_url);
+
+        if (prefetched != null) {
+            return prefetched;
+        }
+
+        String realm = context.getRealm().getName();
+        WaldurBulkhead bulkhead = waldurBulkhead;
+        WaldurBulkhead.Permit permit = bulkhead.acquire(waldur_api_url, realm);
+
+        if (permit == null) {
+            return null;
+        }
+
+        WaldurHedger hedger = waldurHedger;
+
+        if (!hedger.isEnabled() || email == null || waldur_api_url == null || waldur_api_key == null) {
+            try {
+                return checkEmailHasAccess(context.getSession(), email, waldur_api_url, waldur_api_key);
+            } finally {
+                permit.close();
+            }
+        }
+
+        KeycloakSession session = context.getSession();
+
+        return hedger.call(() -> checkEmailHasAccessAsync(session, email, waldur_api_url, waldur_api_key)
+                .whenComplete((status, error) -> permit.close()), () -> {
+            WaldurBulkhead.Permit hedge_permit = bulkhead.tryAcquire(waldur_api_url, realm);
+
+            if (hedge_permit == null) {
+                return null;
+            }
+
+            return checkEmailHasAccessAsync(session, email, waldur_api_url, waldur_api_key)
+                    .whenComplete((status, error) -> hedge_permit.close());
+        }, status -> status.status != null && !status.status.isEmpty());
+    }
+
+    /**
+     * Starts fetching the status of the email from Waldur on the WaldurExecutor,
+     * returning the future of the status, which has a reason set if the call failed.
+     * The request is built before this returns, as the session can only be used on
+     * the thread that owns it, so this must be called from that thread.
+     */
+    protected CompletableFuture<AuthorisationStatus> checkEmailHasAccessAsync(KeycloakSession session,
+                                                                             String email,
+                                                                             String waldur_api_url,
+                                                                             String waldur_api_key) {
+        if (email == null || waldur_api_url == null || waldur_api_key == null) {
+            return CompletableFuture.completedFuture(new AuthorisationStatus());
+        }
+
+        SimpleHttp request;
+
+        try {
+            request = waldurRequest(session, email, waldur_api_url, waldur_api_key);
+        } catch (RuntimeException e) {
+            logger.warn("API call failed: " + e.getMessage());
+            AuthorisationStatus status = new AuthorisationStatus();
+            status.reason = "API call to Waldur failed";
+            return CompletableFuture.completedFuture(status);
+        }
+
+        return WaldurExecutor.supplyAsync(() -> readStatus(request));
+    }
+
+    /** Builds the request for the status of the email from the Waldur API */
+    private static SimpleHttp waldurRequest(KeycloakSession session, String email,
+                                            String waldur_api_url, String waldur_api_key) {
+        return SimpleHttp.doGet(waldur_api_url, session)
+                .header("Authorization", "Token " + waldur_api_key)
+                .param("email", email);
+    }
+
     protected AuthorisationStatus checkEmailHasAccess(KeycloakSession session,
                                                       String email,
                                                       String waldur_api_url,
                                                       String waldur_api_key) {
 
-        AuthorisationStatus status = new AuthorisationStatus();
-
         if (email == null || waldur_api_url == null || waldur_api_key == null) {
-            return status;
+            return new AuthorisationStatus();
         }
 
         // Check if the email has access to the Waldur API.
@@ -165,10 +445,24 @@ public class IsambardAuthenticator implements Authenticator {
 
         // Call the Waldur API
         try {
-            SimpleHttp.Response response = SimpleHttp.doGet(waldur_api_url, session)
-                    .header("Authorization", "Token " + waldur_api_key)
-                    .param("email", email)
-                    .asResponse();
+            return readStatus(waldurRequest(session, email, waldur_api_url, waldur_api_key));
+        } catch (Exception e) {
+            logger.warn("API call failed: " + e.getMessage());
+            AuthorisationStatus status = new AuthorisationStatus();
+            status.reason = "API call to Waldur failed";
+            return status;
+        }
+    }
+
+    /**
+     * Sends a request built by waldurRequest and decodes the status in the response.
+     * The returned status has a reason set if the call failed.
+     */
+    private static AuthorisationStatus readStatus(SimpleHttp request) {
+        AuthorisationStatus status = new AuthorisationStatus();
+
+        try {
+            SimpleHttp.Response response = request.asResponse();
 
             if (response.getStatus() != 200) {
                 logger.warn("API call failed: " + response.getStatus());
@@ -202,6 +496,7 @@ public class IsambardAuthenticator implements Authenticator {
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
+        long start = System.nanoTime();
         UserModel user = context.getUser();
 
         AuthenticatorConfigModel config = context.getAuthenticatorConfig();
@@ -218,7 +513,7 @@ public class IsambardAuthenticator implements Authenticator {
                         // remove leading and trailing whitespace
                         ug = ug.trim();
                         if (g.equals(ug)) {
-                            logger.info("[LOGIN SUCCESS] User " + user.getEmail() + " is in group " + g + " and is allowed to login.");
+                            decided(context, start, LoginDecisionLog.ALLOWED_GROUP, true, null, "group=" + g, -1);
                             context.success();
                             return;
                         }
@@ -237,7 +532,7 @@ public class IsambardAuthenticator implements Authenticator {
         String email = user.getEmail();
 
         if (email == null) {
-            logger.warn("[LOGIN FAILED] User " + user.getUsername() + " has no email address, so cannot log in!");
+            decided(context, start, LoginDecisionLog.NO_EMAIL, false, null, null, -1);
             Response challenge = context.form()
                     .setAttribute("supportEmail", support_email)
                     .createForm("email-is-null.ftl");
@@ -258,7 +553,7 @@ public class IsambardAuthenticator implements Authenticator {
                     // remove leading and trailing whitespace and lowercase
                     e = e.toLowerCase().trim();
                     if (e.equals(sanitised_email)) {
-                        logger.warn("[LOGIN FAILED] " + email + " is banned from logging in.");
+                        decided(context, start, LoginDecisionLog.BANNED, false, null, null, -1);
                         Response challenge = context.form()
                                 .setAttribute("email", email)
                                 .setAttribute("supportEmail", support_email)
@@ -277,7 +572,7 @@ public class IsambardAuthenticator implements Authenticator {
                     // remove leading and trailing whitespace and lowercase
                     e = e.toLowerCase().trim();
                     if (e.equals(sanitised_email)) {
-                        logger.info("[LOGIN SUCCESS] " + email + " is directly allowed to log in.");
+                        decided(context, start, LoginDecisionLog.ALLOWED_EMAIL, true, null, null, -1);
                         context.success();
                         return;
                     }
@@ -287,7 +582,31 @@ public class IsambardAuthenticator implements Authenticator {
             String waldur_api_url = config.getConfig().get("waldur.api.url");
             String waldur_api_key = config.getConfig().get("waldur.api.key");
 
-            AuthorisationStatus access = checkEmailHasAccess(context.getSession(), email, waldur_api_url, waldur_api_key);
+            AuthorisationStatus access = fetchStatus(context, email, waldur_api_url, waldur_api_key);
+
+            if (access == null) {
+                // too many logins are already waiting for Waldur. The fallback, if it has
+                // been chosen, is to let in users who were authorised at their last check,
+                // as long as that was recent. A login cannot be degraded, so otherwise fail.
+                long checked_age = checkedAge(user);
+
+                if (WaldurBulkhead.REJECT_FALLBACK.equals(waldurBulkhead.getRejectionPolicy())
+                        && user.getFirstAttribute(ATTRIBUTES_DIGEST) != null
+                        && checked_age >= 0 && checked_age < fallbackMaxAgeMillis) {
+                    decided(context, start, LoginDecisionLog.BUSY_FALLBACK, true, null, null, -1);
+                    context.success();
+                    return;
+                }
+
+                decided(context, start, LoginDecisionLog.BUSY_REJECTED, false, null, null, -1);
+                Response challenge = context.form()
+                        .setAttribute("email", email)
+                        .setAttribute("reason", "Too many people are logging in. Please try again in a few minutes.")
+                        .setAttribute("supportEmail", support_email)
+                        .createForm("email-not-authorised.ftl");
+                context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR, challenge);
+                return;
+            }
 
             if (access.status.equals("active"))
             {
@@ -306,10 +625,7 @@ public class IsambardAuthenticator implements Authenticator {
                     logger.warn("Error serialising projects to JSON: " + e.getMessage());
                 }
 
-                if (short_name == null || short_name == "" || short_name.length() == 0
-                        || short_name.toLowerCase() == "none") {
-                    logger.info("[LOGIN SUCCESS] " + email
-                            + " is authorised to log in, but they have not set their short name.");
+                if (ShortNames.isUnset(short_name)) {
                     short_name = "";
 
                     // set their projects to null, as they won't be able to access them
@@ -321,7 +637,7 @@ public class IsambardAuthenticator implements Authenticator {
                     }
                 } else if (short_name.length() > 128) {
                     // this is a serious failure - short names should be <= 64 characters...
-                    logger.warn("[LOGIN FAILED] " + email + " is authorised to log in, but their short name is too long.");
+                    decided(context, start, LoginDecisionLog.SHORT_NAME_TOO_LONG, false, access, null, -1);
                     Response challenge = context.form()
                             .setAttribute("email", email)
                             .setAttribute("reason", "Internal error")
@@ -329,31 +645,20 @@ public class IsambardAuthenticator implements Authenticator {
                             .createForm("email-not-authorised.ftl");
                     context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
                     return;
-                } else {
-                    logger.info("[LOGIN SUCCESS] " + email + " is authorised to log in with short name " + short_name
-                            + " and projects " + projects_json);
                 }
 
-                // Get the current user attributes and see if anything needs to change
-                Map<String, List<String>> userAttributes = user.getAttributes();
-
-                // Check if the short name has changed
-                if (userAttributes.containsKey("short_name")) {
-                    if (!userAttributes.get("short_name").get(0).equals(short_name)) {
-                        user.setSingleAttribute("short_name", short_name);
-                    }
-                } else {
-                    user.setSingleAttribute("short_name", short_name);
-                }
+                // Update the cached user attributes if anything has changed
+                String digest = updateCachedAttributes(user, short_name, projects_json);
+                recordChecked(user);
 
-                if (userAttributes.containsKey("projects")) {
-                    if (!userAttributes.get("projects").get(0).equals(projects_json)) {
-                        user.setSingleAttribute("projects", projects_json);
-                    }
-                } else {
-                    user.setSingleAttribute("projects", projects_json);
-                }
+                // record what was fetched, so that the protocol mapper can reuse it
+                context.getAuthenticationSession().setUserSessionNote(STATUS_DIGEST_NOTE, digest);
+                context.getAuthenticationSession().setUserSessionNote(STATUS_TIME_NOTE,
+                        String.valueOf(System.currentTimeMillis()));
 
+                decided(context, start, short_name.isEmpty() ? LoginDecisionLog.NO_SHORT_NAME : LoginDecisionLog.ACTIVE,
+                        true, access, short_name.isEmpty() ? null : "short_name=" + short_name,
+                        projects == null ? 0 : projects.size());
                 context.success();
                 return;
             } else if (access.status.equals("invited")) {
@@ -363,8 +668,7 @@ public class IsambardAuthenticator implements Authenticator {
                 String uninvitable_domains = config.getConfig().get("uninvitable.domains");
 
                 // clear the custom attributes for this user
-                user.removeAttribute("short_name");
-                user.removeAttribute("projects");
+                clearCachedAttributes(user);
 
                 // extract the domain from the email
                 String domain = email.substring(email.indexOf("@") + 1);
@@ -374,10 +678,10 @@ public class IsambardAuthenticator implements Authenticator {
                     for (String d : uninvitable_domains.split(";")) {
                         try {
                             // convert the globbed d to a regex
-                            d = convertGlobToRegex(d);
+                            d = Globs.toRegex(d);
                             if (domain.matches(d)) {
-                                logger.warn("[LOGIN FAILED] " + email + " needs review to log in from matched domain "
-                                        + domain);
+                                decided(context, start, LoginDecisionLog.INVITED_UNINVITABLE, false, access,
+                                        "domain=" + domain, -1);
                                 Response challenge = context.form()
                                         .setAttribute("email", email)
                                         .setAttribute("supportEmail", support_email)
@@ -397,10 +701,9 @@ public class IsambardAuthenticator implements Authenticator {
                     for (String d : invitable_domains.split(";")) {
                         try {
                             // convert the globbed d to a regex
-                            d = convertGlobToRegex(d);
+                            d = Globs.toRegex(d);
                             if (domain.matches(d)) {
-                                logger.info("[LOGIN SUCCESS] " + email
-                                        + " is allowed to log in when invited from matched domain " + domain);
+                                decided(context, start, LoginDecisionLog.INVITED, true, access, "domain=" + domain, -1);
                                 context.success();
                                 return;
                             }
@@ -411,7 +714,7 @@ public class IsambardAuthenticator implements Authenticator {
                 }
 
                 // anything that hasn't matched so far is not allowed
-                logger.warn("[LOGIN FAILED] " + email + " needs review to log in from unmatched domain " + domain);
+                decided(context, start, LoginDecisionLog.INVITED_UNMATCHED, false, access, "domain=" + domain, -1);
                 Response challenge = context.form()
                         .setAttribute("email", email)
                         .setAttribute("supportEmail", support_email)
@@ -421,9 +724,8 @@ public class IsambardAuthenticator implements Authenticator {
                 return;
             }
             else {
-                logger.warn("[LOGIN FAILED] " + email + " is not authorised to log in.");
-                user.removeAttribute("short_name");
-                user.removeAttribute("projects");
+                decided(context, start, LoginDecisionLog.NOT_AUTHORISED, false, access, null, -1);
+                clearCachedAttributes(user);
 
                 Response challenge = context.form()
                         .setAttribute("email", email)
@@ -437,7 +739,7 @@ public class IsambardAuthenticator implements Authenticator {
 
         // we haven't found the email and can't confirm with Waldur
         // that the email is authorised
-        logger.warn("[LOGIN FAILED] " + email + " is not authorised to log in (no API check).");
+        decided(context, start, LoginDecisionLog.NO_API_CHECK, false, null, null, -1);
 
         Response challenge = context.form()
                 .setAttribute("email", email)
@@ -8,10 +8,17 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
 
+import uk.ac.isambard.keycloak.common.WaldurBulkhead;
+import uk.ac.isambard.keycloak.common.WaldurHedger;
+
+import org.jboss.logging.Logger;
+
 import java.util.List;
 import java.util.ArrayList;
 
 public class IsambardAuthenticatorFactory implements AuthenticatorFactory {
+    private static final Logger logger = Logger.getLogger(IsambardAuthenticatorFactory.class);
+
     public static final String PROVIDER_ID = "isambard-authenticator";
     public static final IsambardAuthenticator SINGLETON = new IsambardAuthenticator();
 
@@ -121,8 +128,51 @@ public class IsambardAuthenticatorFactory implements AuthenticatorFactory {
         return configProperties;
     }
 
+    /**
+     * Reads the encoding to write the projects attribute in, which should match the
+     * encoding used by the Isambard protocol mapper, and the limits on calls to
+     * Waldur, e.g. with
+     * --spi-authenticator--isambard-authenticator--projects-attribute-encoding=compact
+     * --spi-authenticator--isambard-authenticator--waldur-max-concurrent=20
+     * --spi-authenticator--isambard-authenticator--waldur-hedge-percentile=95
+     *
+     * along with how many login decisions are kept and logged, e.g. with
+     * --spi-authenticator--isambard-authenticator--decision-buffer-size=1024
+     * --spi-authenticator--isambard-authenticator--decision-log-sample-rate=0.1
+     */
     @Override
     public void init(Config.Scope config) {
+        IsambardAuthenticator.compactProjects = "compact".equals(config.get("projects-attribute-encoding", "json"));
+
+        try {
+            IsambardAuthenticator.waldurBulkhead = new WaldurBulkhead("isambard.authenticator.",
+                    config.getInt("waldur-max-concurrent", 20),
+                    config.getInt("waldur-max-queue", 100),
+                    config.getLong("waldur-max-wait", 2000L),
+                    config.get("waldur-rejection-policy", WaldurBulkhead.REJECT_FAIL_FAST));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid Waldur bulkhead config, using the defaults: " + e.getMessage());
+        }
+
+        IsambardAuthenticator.fallbackMaxAgeMillis = 1000L * config.getLong("waldur-fallback-max-age", 3600L);
+
+        try {
+            IsambardAuthenticator.waldurHedger = new WaldurHedger("isambard.authenticator.",
+                    Double.parseDouble(config.get("waldur-hedge-percentile", "0")),
+                    Double.parseDouble(config.get("waldur-hedge-budget", "0.05")),
+                    config.getLong("waldur-hedge-min-delay", 50L));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid Waldur hedge config, so not hedging: " + e.getMessage());
+        }
+
+        try {
+            IsambardAuthenticator.decisionLog = new LoginDecisionLog(
+                    config.getInt("decision-buffer-size", 1024),
+                    Double.parseDouble(config.get("decision-log-sample-rate", "1.0")),
+                    config.getInt("decision-log-max-per-second", 100));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid login decision log config, using the defaults: " + e.getMessage());
+        }
     }
 
     @Override
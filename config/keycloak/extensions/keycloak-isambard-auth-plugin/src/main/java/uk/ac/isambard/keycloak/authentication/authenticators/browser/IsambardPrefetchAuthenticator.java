@@ -0,0 +1,122 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.browser;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import org.jboss.logging.Logger;
+
+import java.util.Iterator;
+
+/**
+ * Companion to the Isambard authenticator, which starts looking up the user's
+ * status in Waldur as soon as the user has been identified. Placed straight after
+ * the step that identifies the user, the lookup then overlaps with the rest of
+ * the flow (e.g. the password or OTP steps), and the Isambard authenticator
+ * usually finds the status ready rather than waiting for Waldur itself.
+ *
+ * This never affects the outcome of the login. The Waldur API is taken from the
+ * config of the Isambard authenticator in the same flow, or else in the realm's
+ * browser flow, so it does not need its own config.
+ */
+public class IsambardPrefetchAuthenticator implements Authenticator {
+
+    private static final Logger logger = Logger.getLogger(IsambardPrefetchAuthenticator.class);
+
+    /** How deep sub-flows are searched for the Isambard authenticator */
+    private static final int MAX_FLOW_DEPTH = 10;
+
+    @Override
+    public void authenticate(AuthenticationFlowContext context) {
+        UserModel user = context.getUser();
+
+        if (user != null && user.getEmail() != null) {
+            try {
+                AuthenticatorConfigModel config = isambardConfig(context);
+
+                if (config != null) {
+                    IsambardAuthenticatorFactory.SINGLETON.prefetch(context, config);
+                } else {
+                    logger.debug("No Isambard authenticator found to prefetch the Waldur status for");
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Could not prefetch Waldur status for " + user.getEmail() + ": " + e.getMessage());
+            }
+        }
+
+        context.success();
+    }
+
+    /**
+     * Returns the config of the Isambard authenticator in the flow being run, or
+     * else in the realm's browser flow, or null if there is none
+     */
+    private static AuthenticatorConfigModel isambardConfig(AuthenticationFlowContext context) {
+        RealmModel realm = context.getRealm();
+        AuthenticationFlowModel top = context.getTopLevelFlow();
+        AuthenticatorConfigModel config = top == null ? null : findConfig(realm, top.getId(), 0);
+
+        if (config == null && realm.getBrowserFlow() != null
+                && (top == null || !realm.getBrowserFlow().getId().equals(top.getId()))) {
+            config = findConfig(realm, realm.getBrowserFlow().getId(), 0);
+        }
+
+        return config;
+    }
+
+    private static AuthenticatorConfigModel findConfig(RealmModel realm, String flow_id, int depth) {
+        if (depth > MAX_FLOW_DEPTH) {
+            return null;
+        }
+
+        Iterator<AuthenticationExecutionModel> executions = realm.getAuthenticationExecutionsStream(flow_id).iterator();
+
+        while (executions.hasNext()) {
+            AuthenticationExecutionModel execution = executions.next();
+
+            if (execution.isDisabled()) {
+                continue;
+            }
+
+            if (execution.isAuthenticatorFlow()) {
+                AuthenticatorConfigModel config = findConfig(realm, execution.getFlowId(), depth + 1);
+
+                if (config != null) {
+                    return config;
+                }
+            } else if (IsambardAuthenticatorFactory.PROVIDER_ID.equals(execution.getAuthenticator())
+                    && execution.getAuthenticatorConfig() != null) {
+                return realm.getAuthenticatorConfigById(execution.getAuthenticatorConfig());
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void action(AuthenticationFlowContext context) {
+    }
+
+    @Override
+    public boolean requiresUser() {
+        return false;
+    }
+
+    @Override
+    public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user) {
+        return true;
+    }
+
+    @Override
+    public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,335 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.browser;
+
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Record of the recent login decisions made by the Isambard authenticator on this
+ * node, held in a fixed-size ring buffer that logins write to without taking a
+ * lock. Each decision is an immutable record, so readers never see one half
+ * written, and a reader that races with a writer just skips the slot.
+ *
+ * Decisions are also logged. Only a sample of successful logins is logged, at no
+ * more than a set number of lines a second, so that a spike in logins does not
+ * flood the log, and the number left out is logged within a second or so. Failed
+ * logins are always logged, as they are the audit trail. The full record is
+ * available from the admin endpoint at /realms/{realm}/isambard-decisions.
+ *
+ * Emails are only held as a hash, so the buffer can be queried for a given user
+ * without the endpoint listing everyone who has logged in.
+ */
+public final class LoginDecisionLog {
+
+    private static final Logger logger = Logger.getLogger(LoginDecisionLog.class);
+
+    /** The user is in one of the allowed groups */
+    static final String ALLOWED_GROUP = "allowed_group";
+
+    /** The user has no email address */
+    static final String NO_EMAIL = "no_email";
+
+    /** The email is one of the banned emails */
+    static final String BANNED = "banned";
+
+    /** The email is one of the allowed emails */
+    static final String ALLOWED_EMAIL = "allowed_email";
+
+    /** Waldur was busy, and the user was authorised when last checked */
+    static final String BUSY_FALLBACK = "busy_fallback";
+
+    /** Waldur was busy, and the user could not be let in without it */
+    static final String BUSY_REJECTED = "busy_rejected";
+
+    /** The user is active in Waldur */
+    static final String ACTIVE = "active";
+
+    /** The user is active in Waldur but has not set their short name */
+    static final String NO_SHORT_NAME = "no_short_name";
+
+    /** The user is active in Waldur but their short name is too long */
+    static final String SHORT_NAME_TOO_LONG = "short_name_too_long";
+
+    /** The user is invited from one of the invitable domains */
+    static final String INVITED = "invited";
+
+    /** The user is invited from one of the uninvitable domains */
+    static final String INVITED_UNINVITABLE = "invited_uninvitable";
+
+    /** The user is invited from a domain that is in neither list */
+    static final String INVITED_UNMATCHED = "invited_unmatched";
+
+    /** Waldur says the user is not authorised, or could not be called */
+    static final String NOT_AUTHORISED = "not_authorised";
+
+    /** The authenticator has no config, so cannot check with Waldur */
+    static final String NO_API_CHECK = "no_api_check";
+
+    /** A login decision, as returned by the admin endpoint */
+    public static final class Decision {
+        private final long sequence;
+        private final long time;
+        private final String realm;
+        private final String email_hash;
+        private final String branch;
+        private final boolean success;
+        private final String waldur_status;
+        private final String reason;
+        private final String detail;
+        private final int projects;
+        private final long latency_micros;
+
+        private Decision(long sequence, long time, String realm, String email_hash, String branch,
+                         boolean success, String waldur_status, String reason, String detail, int projects,
+                         long latency_micros) {
+            this.sequence = sequence;
+            this.time = time;
+            this.realm = realm;
+            this.email_hash = email_hash;
+            this.branch = branch;
+            this.success = success;
+            this.waldur_status = waldur_status;
+            this.reason = reason;
+            this.detail = detail;
+            this.projects = projects;
+            this.latency_micros = latency_micros;
+        }
+
+        public String getRealm() {
+            return realm;
+        }
+
+        public String getEmailHash() {
+            return email_hash;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /** Returns the decision as JSON-ready fields, leaving out those that are not set */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("sequence", sequence);
+            map.put("time", time);
+            map.put("email_hash", email_hash);
+            map.put("branch", branch);
+            map.put("outcome", success ? "success" : "failure");
+
+            if (waldur_status != null) {
+                map.put("waldur_status", waldur_status);
+            }
+
+            if (reason != null) {
+                map.put("reason", reason);
+            }
+
+            if (detail != null) {
+                map.put("detail", detail);
+            }
+
+            if (projects >= 0) {
+                map.put("projects", projects);
+            }
+
+            map.put("latency_ms", latency_micros / 1000.0);
+            return map;
+        }
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Decision> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    private final double sample_rate;
+    private final int max_logs_per_second;
+    private final AtomicLong log_second = new AtomicLong();
+    private final AtomicInteger logs_this_second = new AtomicInteger();
+    private final AtomicInteger logs_suppressed = new AtomicInteger();
+
+    /** Logs the number of successful logins left out of the log, shortly after they were */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "isambard-decision-log-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param size the number of decisions kept, rounded up to a power of two, or 0 to keep none
+     * @param sample_rate the fraction of successful logins that are logged
+     * @param max_logs_per_second the most successful logins logged a second, or 0 to log none of them
+     */
+    LoginDecisionLog(int size, double sample_rate, int max_logs_per_second) {
+        if (size < 0 || size > (1 << 20)) {
+            throw new IllegalArgumentException("Decision buffer size must be from 0 to " + (1 << 20) + ", not "
+                    + size);
+        }
+
+        if (sample_rate < 0 || sample_rate > 1) {
+            throw new IllegalArgumentException("Decision log sample rate must be a fraction from 0 to 1, not "
+                    + sample_rate);
+        }
+
+        // a power of two, so that a sequence number maps to its slot with a mask
+        int capacity = size <= 1 ? size : Integer.highestOneBit(size - 1) << 1;
+
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sample_rate = sample_rate;
+        this.max_logs_per_second = Math.max(0, max_logs_per_second);
+    }
+
+    /** Returns the hash that emails are held as, from the trimmed and lowercased email */
+    public static String hashEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(email.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22);
+        } catch (Exception e) {
+            // SHA-256 is always available on the JVM
+            throw new IllegalStateException("Could not create email hash", e);
+        }
+    }
+
+    /**
+     * Records a login decision, and logs it if it is a failure, or a success that is
+     * sampled and under the limit.
+     *
+     * @param start when the authenticator started, from System.nanoTime()
+     * @param email the email of the user, or null if they have none
+     * @param username the username of the user, which is logged if they have no email
+     * @param waldur_status the status from Waldur, or null if it was not called
+     * @param reason why Waldur refused the user, or null
+     * @param detail what matched in the branch, e.g. "domain=example.org", or null
+     * @param projects the number of projects the user has, or -1 if not known
+     */
+    void record(long start, String realm, String email, String username, String branch, boolean success,
+                String waldur_status, String reason, String detail, int projects) {
+        long latency_micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+        if (mask >= 0) {
+            long sequence = next.getAndIncrement();
+            slots.set((int) (sequence & mask), new Decision(sequence, System.currentTimeMillis(), realm,
+                    hashEmail(email), branch, success, waldur_status, reason, detail, projects, latency_micros));
+        }
+
+        if (success && !shouldLog()) {
+            return;
+        }
+
+        String line = (success ? "[LOGIN SUCCESS] " : "[LOGIN FAILED] ")
+                + (email == null ? "user " + username : email)
+                + " branch=" + branch
+                + " realm=" + realm
+                + (detail == null ? "" : " " + detail)
+                + (waldur_status == null ? "" : " waldur_status=" + waldur_status)
+                + (reason == null ? "" : " reason=\"" + reason + "\"")
+                + (projects < 0 ? "" : " projects=" + projects)
+                + " latency_ms=" + latency_micros / 1000;
+
+        if (success) {
+            logger.info(line);
+        } else {
+            logger.warn(line);
+        }
+    }
+
+    /**
+     * Returns whether to log a successful login, which counts it against this
+     * second's limit
+     */
+    private boolean shouldLog() {
+        if (max_logs_per_second == 0) {
+            return false;
+        }
+
+        if (sample_rate < 1 && ThreadLocalRandom.current().nextDouble() >= sample_rate) {
+            return false;
+        }
+
+        long second = System.currentTimeMillis() / 1000;
+        long last = log_second.get();
+
+        if (second != last && log_second.compareAndSet(last, second)) {
+            logs_this_second.set(0);
+            flushSuppressed();
+        }
+
+        if (logs_this_second.incrementAndGet() > max_logs_per_second) {
+            if (logs_suppressed.incrementAndGet() == 1) {
+                // report these even if no more logins follow
+                flusher.schedule(this::flushSuppressed, 1, TimeUnit.SECONDS);
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /** Logs the number of successful logins left out of the log since this was last called */
+    private void flushSuppressed() {
+        int suppressed = logs_suppressed.getAndSet(0);
+
+        if (suppressed > 0) {
+            logger.warn(suppressed + " successful logins were not logged, as more than "
+                    + max_logs_per_second + " were made in a second");
+        }
+    }
+
+    /** The number of decisions that can be kept */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the most recent decisions for the passed realm, newest first,
+     * optionally only those for the passed email hash or branch.
+     *
+     * @param limit the most decisions to return
+     */
+    public List<Decision> recent(String realm, String email_hash, String branch, int limit) {
+        List<Decision> decisions = new ArrayList<>();
+        long newest = next.get() - 1;
+        long oldest = Math.max(0, newest - mask);
+
+        for (long sequence = newest; sequence >= oldest && decisions.size() < limit; sequence--) {
+            Decision decision = slots.get((int) (sequence & mask));
+
+            // not written yet, or already overwritten by a newer decision
+            if (decision == null || decision.sequence != sequence) {
+                continue;
+            }
+
+            if (realm.equals(decision.realm)
+                    && (email_hash == null || email_hash.equals(decision.email_hash))
+                    && (branch == null || branch.equals(decision.branch))) {
+                decisions.add(decision);
+            }
+        }
+
+        return decisions;
+    }
+}
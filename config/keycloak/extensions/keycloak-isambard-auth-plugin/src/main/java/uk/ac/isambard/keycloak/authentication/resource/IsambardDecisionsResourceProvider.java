@@ -0,0 +1,113 @@
+package uk.ac.isambard.keycloak.authentication.resource;
+
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import uk.ac.isambard.keycloak.authentication.authenticators.browser.IsambardAuthenticator;
+import uk.ac.isambard.keycloak.authentication.authenticators.browser.LoginDecisionLog;
+
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admin endpoint listing the recent login decisions of the Isambard authenticator,
+ * available at /realms/{realm}/isambard-decisions. Callers need a bearer token for
+ * a user in the realm with the realm-management manage-users role.
+ *
+ * Decisions are only held in memory on the node that made them, so with several
+ * nodes each must be asked in turn.
+ */
+public class IsambardDecisionsResourceProvider implements RealmResourceProvider {
+
+    private final KeycloakSession session;
+
+    public IsambardDecisionsResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Returns null if the caller may use these endpoints, or the error response to return
+     */
+    private Response checkAdmin() {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+
+        if (auth == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+        ClientModel realm_management = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+
+        if (realm_management == null
+                || !auth.getUser().hasRole(realm_management.getRole(AdminRoles.MANAGE_USERS))) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        return null;
+    }
+
+    /**
+     * Lists the most recent decisions for this realm, newest first, optionally only
+     * those for the passed email (which is matched by its hash) or branch
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDecisions(@QueryParam("limit") @DefaultValue("100") int limit,
+                                 @QueryParam("email") String email,
+                                 @QueryParam("branch") String branch) {
+        Response denied = checkAdmin();
+
+        if (denied != null) {
+            return denied;
+        }
+
+        if (limit <= 0 || limit > 10000) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("limit must be between 1 and 10000").build();
+        }
+
+        LoginDecisionLog log = IsambardAuthenticator.getDecisionLog();
+        String realm = session.getContext().getRealm().getName();
+
+        List<Map<String, Object>> decisions = new ArrayList<>();
+
+        for (LoginDecisionLog.Decision decision : log.recent(realm,
+                email == null || email.isEmpty() ? null : LoginDecisionLog.hashEmail(email),
+                branch == null || branch.isEmpty() ? null : branch, limit)) {
+            decisions.add(decision.toMap());
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("capacity", log.capacity());
+        body.put("decisions", decisions);
+
+        CacheControl cache_control = new CacheControl();
+        cache_control.setNoStore(true);
+
+        return Response.ok(body).cacheControl(cache_control).build();
+    }
+
+    @Override
+    public void close() {
+    }
+}
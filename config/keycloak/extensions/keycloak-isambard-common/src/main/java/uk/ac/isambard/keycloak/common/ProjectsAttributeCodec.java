@@ -0,0 +1,239 @@
+package uk.ac.isambard.keycloak.common;
+
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact encoding of the projects user attribute, which is otherwise the JSON
+ * encoded projects and is the largest value stored on most users.
+ *
+ * The compact form is "z1:" followed by the base64url of the deflated binary
+ * encoding of the projects, in which each resource name is written once in a
+ * dictionary and then referred to by its index. Values without the prefix are
+ * the original JSON, so readers accept both forms.
+ *
+ * Encoding is only used when decoding gives back exactly the same JSON, so the
+ * digests computed from the JSON are the same whichever form is stored.
+ *
+ * Both the Isambard protocol mapper and the Isambard authenticator read and
+ * write this attribute, so both use this codec.
+ */
+public final class ProjectsAttributeCodec {
+
+    private static final Logger logger = Logger.getLogger(ProjectsAttributeCodec.class);
+
+    public static final String PREFIX = "z1:";
+
+    private ProjectsAttributeCodec() {
+    }
+
+    /** Whether the passed attribute value is in the compact form */
+    public static boolean isCompact(String value) {
+        return value != null && value.startsWith(PREFIX);
+    }
+
+    /**
+     * Returns the compact form of the passed projects JSON, or the JSON unchanged
+     * if it cannot be encoded exactly
+     */
+    public static String encode(String projects_json) {
+        if (projects_json == null || isCompact(projects_json)) {
+            return projects_json;
+        }
+
+        try {
+            JsonNode root = JsonSerialization.mapper.readTree(projects_json);
+
+            if (!root.isObject()) {
+                return projects_json;
+            }
+
+            List<String> dictionary = new ArrayList<>();
+            Map<String, Integer> indexes = new HashMap<>();
+
+            ByteArrayOutputStream body_bytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(body_bytes);
+
+            writeVarint(body, root.size());
+
+            for (Map.Entry<String, JsonNode> project : root.properties()) {
+                JsonNode resources = project.getValue().get("resources");
+
+                if (!project.getValue().isObject() || resources == null || !resources.isArray()) {
+                    return projects_json;
+                }
+
+                writeString(body, project.getKey());
+                writeString(body, text(project.getValue().get("name")));
+                writeVarint(body, resources.size());
+
+                for (JsonNode resource : resources) {
+                    String name = text(resource.get("name"));
+
+                    if (name == null) {
+                        return projects_json;
+                    }
+
+                    Integer index = indexes.get(name);
+
+                    if (index == null) {
+                        index = dictionary.size();
+                        indexes.put(name, index);
+                        dictionary.add(name);
+                    }
+
+                    writeVarint(body, index);
+                    writeString(body, text(resource.get("username")));
+                }
+            }
+
+            body.flush();
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(encoded))) {
+                writeVarint(out, dictionary.size());
+
+                for (String name : dictionary) {
+                    writeString(out, name);
+                }
+
+                body_bytes.writeTo(out);
+            }
+
+            String compact = PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(encoded.toByteArray());
+
+            // only use the compact form if it is lossless, e.g. there are no unexpected fields
+            return projects_json.equals(decode(compact)) ? compact : projects_json;
+        } catch (Exception e) {
+            logger.debug("Not encoding projects: " + e.getMessage());
+            return projects_json;
+        }
+    }
+
+    /**
+     * Returns the projects JSON held in the passed attribute value, which may be
+     * in either form, or null if it is compact but cannot be decoded
+     */
+    public static String decode(String value) {
+        if (!isCompact(value)) {
+            return value;
+        }
+
+        try {
+            byte[] encoded = Base64.getUrlDecoder().decode(value.substring(PREFIX.length()));
+
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(encoded)))) {
+                String[] dictionary = new String[readVarint(in)];
+
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = readString(in);
+                }
+
+                ObjectNode root = JsonSerialization.mapper.createObjectNode();
+                int project_count = readVarint(in);
+
+                for (int i = 0; i < project_count; i++) {
+                    String key = readString(in);
+                    ObjectNode project = root.putObject(key);
+
+                    String name = readString(in);
+
+                    if (name != null) {
+                        project.put("name", name);
+                    }
+
+                    ArrayNode resources = project.putArray("resources");
+                    int resource_count = readVarint(in);
+
+                    for (int j = 0; j < resource_count; j++) {
+                        ObjectNode resource = resources.addObject();
+                        resource.put("name", dictionary[readVarint(in)]);
+
+                        String username = readString(in);
+
+                        if (username != null) {
+                            resource.put("username", username);
+                        }
+                    }
+                }
+
+                return JsonSerialization.mapper.writeValueAsString(root);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not decode compact projects attribute: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String text(JsonNode node) {
+        return node == null || node.isNull() ? null : node.asText();
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Invalid varint");
+    }
+
+    /** Writes the length plus one, so that zero can mean null, followed by the UTF-8 bytes */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+
+        if (length == 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,26 @@
+package uk.ac.isambard.keycloak.common;
+
+/**
+ * Checks on the short names that Waldur returns for users. The Isambard
+ * authenticator and the Isambard protocol mapper both cache the short name on the
+ * user, and the mapper can build tokens from what the authenticator cached, so
+ * both must treat the same values as unset.
+ */
+public final class ShortNames {
+
+    private ShortNames() {
+    }
+
+    /**
+     * Whether the user has not set a short name, which Waldur returns as an empty
+     * string or as "none" in any case
+     */
+    public static boolean isUnset(String short_name) {
+        if (short_name == null) {
+            return true;
+        }
+
+        String trimmed = short_name.trim();
+        return trimmed.isEmpty() || trimmed.equalsIgnoreCase("none");
+    }
+}
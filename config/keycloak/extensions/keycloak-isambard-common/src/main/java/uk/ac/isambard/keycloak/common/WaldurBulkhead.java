@@ -0,0 +1,178 @@
+package uk.ac.isambard.keycloak.common;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulkhead limiting the number of concurrent calls to Waldur, with a separate
+ * compartment for each Waldur endpoint and realm.
+ *
+ * A call that finds every permit of its compartment in use waits for one, in
+ * order of arrival, for up to the maximum wait. Calls that arrive when the queue
+ * of waiting calls is already full, or that wait for too long, are rejected, and
+ * the caller applies its rejection policy. This stops a spike of logins or tokens
+ * from opening hundreds of connections to Waldur and tying up Keycloak's worker
+ * threads while they wait for it.
+ *
+ * This is used by both the Isambard authenticator and the Isambard protocol
+ * mapper. Each creates its own bulkhead, so the most calls one node makes to an
+ * endpoint is the sum of their limits.
+ */
+public final class WaldurBulkhead {
+
+    /** Fail the request straight away */
+    public static final String REJECT_FAIL_FAST = "fail_fast";
+
+    /** Use the last status cached for the user, if there is one */
+    public static final String REJECT_FALLBACK = "fallback";
+
+    /** Carry on without the status from Waldur */
+    public static final String REJECT_DEGRADE = "degrade";
+
+    /** A permit to call Waldur, which must be closed once the call has finished */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Permit UNLIMITED = () -> { };
+
+    private static final class Compartment {
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        private Compartment(int max_concurrent) {
+            // fair, so that calls are admitted in the order they started waiting
+            this.permits = new Semaphore(max_concurrent, true);
+        }
+    }
+
+    private final String metric_prefix;
+    private final int max_concurrent;
+    private final int max_queue;
+    private final long max_wait_millis;
+    private final String rejection_policy;
+
+    private final Map<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+    /**
+     * @param metric_prefix the prefix of the metrics recorded by this bulkhead
+     * @param max_concurrent the most concurrent calls per endpoint and realm, or 0 for no limit
+     * @param max_queue the most calls that can wait for a permit per endpoint and realm
+     * @param max_wait_millis the longest a call waits for a permit
+     * @param rejection_policy what callers do with a rejected call, one of the REJECT_ values
+     */
+    public WaldurBulkhead(String metric_prefix, int max_concurrent, int max_queue, long max_wait_millis,
+                          String rejection_policy) {
+        if (!REJECT_FAIL_FAST.equals(rejection_policy) && !REJECT_FALLBACK.equals(rejection_policy)
+                && !REJECT_DEGRADE.equals(rejection_policy)) {
+            throw new IllegalArgumentException("Unknown Waldur rejection policy '" + rejection_policy + "'");
+        }
+
+        this.metric_prefix = metric_prefix;
+        this.max_concurrent = max_concurrent;
+        this.max_queue = Math.max(0, max_queue);
+        this.max_wait_millis = Math.max(0, max_wait_millis);
+        this.rejection_policy = rejection_policy;
+    }
+
+    public String getRejectionPolicy() {
+        return rejection_policy;
+    }
+
+    /**
+     * Waits for a permit to call the passed Waldur endpoint for the passed realm.
+     *
+     * @return the permit, or null if the call was rejected
+     */
+    public Permit acquire(String endpoint, String realm) {
+        if (max_concurrent <= 0) {
+            return UNLIMITED;
+        }
+
+        Compartment compartment = compartments.computeIfAbsent(endpoint + " " + realm,
+                k -> new Compartment(max_concurrent));
+
+        long start = System.nanoTime();
+
+        if (compartment.permits.tryAcquire()) {
+            return admitted(compartment, realm, start);
+        }
+
+        if (compartment.waiting.incrementAndGet() > max_queue) {
+            compartment.waiting.decrementAndGet();
+            recordQueueTime(realm, start, "queue_full");
+            return null;
+        }
+
+        try {
+            if (compartment.permits.tryAcquire(max_wait_millis, TimeUnit.MILLISECONDS)) {
+                return admitted(compartment, realm, start);
+            }
+
+            recordQueueTime(realm, start, "timed_out");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            recordQueueTime(realm, start, "interrupted");
+            return null;
+        } finally {
+            compartment.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a permit to call the passed Waldur endpoint for the passed realm, if one
+     * is free right now. This is for optional calls, such as hedged calls, which
+     * should never wait.
+     *
+     * @return the permit, or null if none is free
+     */
+    public Permit tryAcquire(String endpoint, String realm) {
+        if (max_concurrent <= 0) {
+            return UNLIMITED;
+        }
+
+        Compartment compartment = compartments.computeIfAbsent(endpoint + " " + realm,
+                k -> new Compartment(max_concurrent));
+
+        // leave the free permits to calls that are already waiting
+        if (compartment.waiting.get() > 0 || !compartment.permits.tryAcquire()) {
+            return null;
+        }
+
+        return permit(compartment);
+    }
+
+    private Permit admitted(Compartment compartment, String realm, long start) {
+        recordQueueTime(realm, start, "admitted");
+        return permit(compartment);
+    }
+
+    /** Returns a permit that gives back the taken permit when first closed */
+    private static Permit permit(Compartment compartment) {
+        AtomicBoolean released = new AtomicBoolean();
+
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                compartment.permits.release();
+            }
+        };
+    }
+
+    private void recordQueueTime(String realm, long start, String result) {
+        Timer.builder(metric_prefix + "waldur.bulkhead.queue_time")
+                .description("Time spent waiting for a permit to call Waldur, by whether the call was admitted")
+                .tag("realm", realm == null ? "unknown" : realm)
+                .tag("result", result)
+                .register(Metrics.globalRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
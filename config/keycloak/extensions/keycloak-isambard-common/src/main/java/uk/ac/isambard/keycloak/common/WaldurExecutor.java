@@ -0,0 +1,69 @@
+package uk.ac.isambard.keycloak.common;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Executor for calls to Waldur and other background work, so that these do not
+ * need their own pools of platform threads or block Keycloak's worker threads.
+ *
+ * Each task runs on its own virtual thread when Keycloak runs on Java 21 or later,
+ * as the Keycloak 26 images do. The plugins are still built for Java 17, which
+ * Keycloak 26 also supports, so the virtual thread executor is looked up at
+ * runtime, and on Java 17 the tasks run on a cached pool of daemon threads.
+ *
+ * The Isambard authenticator and the Isambard protocol mapper share this
+ * executor.
+ */
+public final class WaldurExecutor {
+
+    private static final Logger logger = Logger.getLogger(WaldurExecutor.class);
+
+    private static final boolean virtual;
+    private static final ExecutorService executor;
+
+    static {
+        ExecutorService created;
+
+        try {
+            created = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            created = null;
+        }
+
+        virtual = created != null;
+
+        if (created == null) {
+            created = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "isambard-waldur");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        executor = created;
+        logger.debug("Running Waldur calls on " + (virtual ? "virtual threads" : "platform threads"));
+    }
+
+    private WaldurExecutor() {
+    }
+
+    /** Whether tasks run on virtual threads */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /** Runs the passed task in the background */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /** Runs the passed task in the background, returning a future of its result */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+}
@@ -0,0 +1,213 @@
+package uk.ac.isambard.keycloak.common;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Hedges calls to Waldur, to cut the tail latency caused by occasional slow
+ * responses. The call is started, and if it has not finished within the configured
+ * percentile of recent latencies, an identical call is started as well. The first
+ * successful response is used, or the first call's response if neither succeeds.
+ * Calls are started on the thread that calls the hedger, and run on the
+ * WaldurExecutor.
+ *
+ * Hedged calls are limited by a budget, as a fraction of all calls, so that a
+ * slow Waldur is not sent twice as many calls. Each call earns the budget fraction
+ * of a token, up to a small burst, and each hedged call spends a whole token.
+ * The percentile is taken over the latencies of the first calls only, so hedging
+ * does not make the delay shrink.
+ *
+ * This is used by both the Isambard authenticator and the Isambard protocol
+ * mapper, which each create their own hedger.
+ */
+public final class WaldurHedger {
+
+    /** The number of recent latencies that the percentile is taken over */
+    private static final int WINDOW = 1000;
+
+    /** The number of latencies needed before any call is hedged */
+    private static final int MIN_SAMPLES = 20;
+
+    /** How often, in latencies, the hedge delay is recomputed */
+    private static final int RECOMPUTE_EVERY = 50;
+
+    /** The most hedged calls that can be saved up from the budget */
+    private static final double MAX_TOKENS = 10;
+
+    private final String metric_prefix;
+    private final double percentile;
+    private final double budget;
+    private final long min_delay_nanos;
+
+    // guarded by this
+    private final long[] latencies = new long[WINDOW];
+    private long samples;
+    private long delay_nanos = -1;
+    private double tokens;
+
+    /**
+     * @param metric_prefix the prefix of the metrics recorded by this hedger
+     * @param percentile the percentile of recent latency after which a call is hedged, or 0 to never hedge
+     * @param budget the most calls that are hedged, as a fraction of all calls
+     * @param min_delay_millis the shortest time to wait before hedging a call
+     */
+    public WaldurHedger(String metric_prefix, double percentile, double budget, long min_delay_millis) {
+        if (percentile < 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Waldur hedge percentile must be from 0 to below 100, not "
+                    + percentile);
+        }
+
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("Waldur hedge budget must be a fraction from 0 to 1, not " + budget);
+        }
+
+        this.metric_prefix = metric_prefix;
+        this.percentile = percentile;
+        this.budget = budget;
+        this.min_delay_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, min_delay_millis));
+    }
+
+    public boolean isEnabled() {
+        return percentile > 0 && budget > 0;
+    }
+
+    /**
+     * Makes the call, hedging it with the second call if it is slow. Each supplier
+     * starts its call and returns the future of its response. The second may return
+     * null if its call could not be started, in which case the first is waited for.
+     *
+     * @param first starts the call
+     * @param second starts the identical call to hedge with
+     * @param succeeded whether a response is successful
+     * @return the first successful response, or the response of the first call
+     */
+    public <T> T call(Supplier<CompletableFuture<T>> first, Supplier<CompletableFuture<T>> second,
+                      Predicate<T> succeeded) {
+        BlockingQueue<CompletableFuture<T>> done = new ArrayBlockingQueue<>(2);
+        long start = System.nanoTime();
+
+        CompletableFuture<T> primary = first.get();
+        primary.whenComplete((response, error) -> recordLatency(System.nanoTime() - start));
+        primary.whenComplete((response, error) -> done.add(primary));
+
+        long delay = earnAndGetDelay();
+
+        try {
+            if (delay < 0) {
+                return join(primary);
+            }
+
+            try {
+                T response = primary.get(delay, TimeUnit.NANOSECONDS);
+                record("not_needed");
+                return response;
+            } catch (TimeoutException e) {
+                // slow, so hedge if the budget allows
+            }
+
+            if (!spendToken()) {
+                record("over_budget");
+                return join(primary);
+            }
+
+            CompletableFuture<T> hedge = second.get();
+
+            if (hedge == null) {
+                record("not_sent");
+                return join(primary);
+            }
+
+            hedge.whenComplete((response, error) -> done.add(hedge));
+
+            CompletableFuture<T> winner = done.take();
+
+            if (!isSuccess(winner, succeeded)) {
+                winner = done.take();
+
+                if (!isSuccess(winner, succeeded)) {
+                    winner = primary;
+                }
+            }
+
+            record(winner == hedge ? "hedge_won" : "primary_won");
+
+            return join(winner);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return join(primary);
+        } catch (ExecutionException e) {
+            return join(primary);
+        }
+    }
+
+    private static <T> boolean isSuccess(CompletableFuture<T> future, Predicate<T> succeeded) {
+        if (future.isCompletedExceptionally()) {
+            return false;
+        }
+
+        T response = future.getNow(null);
+        return response != null && succeeded.test(response);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the budget fraction of a token for this call, and returns the time to
+     * wait before hedging it, or -1 if it must not be hedged
+     */
+    private synchronized long earnAndGetDelay() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+        return delay_nanos;
+    }
+
+    private synchronized boolean spendToken() {
+        if (tokens < 1) {
+            return false;
+        }
+
+        tokens -= 1;
+        return true;
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[(int) (samples % WINDOW)] = nanos;
+        samples += 1;
+
+        if (samples >= MIN_SAMPLES && (delay_nanos < 0 || samples % RECOMPUTE_EVERY == 0)) {
+            long[] sorted = Arrays.copyOf(latencies, (int) Math.min(samples, WINDOW));
+            Arrays.sort(sorted);
+
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            delay_nanos = Math.max(min_delay_nanos, sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+        }
+    }
+
+    private void record(String result) {
+        Counter.builder(metric_prefix + "waldur.hedge")
+                .description("Calls to Waldur that were slow enough to hedge, by whether the hedge was sent and won")
+                .tag("result", result)
+                .register(Metrics.globalRegistry)
+                .increment();
+    }
+}
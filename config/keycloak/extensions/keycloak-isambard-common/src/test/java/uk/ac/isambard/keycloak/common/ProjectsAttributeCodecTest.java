@@ -0,0 +1,119 @@
+package uk.ac.isambard.keycloak.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProjectsAttributeCodecTest {
+
+    private static final String PROJECTS = "{"
+            + "\"proj-a\":{\"name\":\"Project A\",\"resources\":["
+            + "{\"name\":\"brics.aip1.isambard\",\"username\":\"alice.proj-a\"},"
+            + "{\"name\":\"brics.notebooks.isambard\",\"username\":\"alice.proj-a\"}]},"
+            + "\"proj-b\":{\"name\":\"Project B\",\"resources\":["
+            + "{\"name\":\"brics.aip1.isambard\",\"username\":\"alice.proj-b\"},"
+            + "{\"name\":\"brics.notebooks.isambard\"}]},"
+            + "\"proj-c\":{\"resources\":[]}"
+            + "}";
+
+    @Test
+    void roundTrip() {
+        String compact = ProjectsAttributeCodec.encode(PROJECTS);
+
+        assertTrue(ProjectsAttributeCodec.isCompact(compact));
+        assertTrue(compact.length() < PROJECTS.length());
+        assertEquals(PROJECTS, ProjectsAttributeCodec.decode(compact));
+    }
+
+    @Test
+    void roundTripOfNoProjects() {
+        String compact = ProjectsAttributeCodec.encode("{}");
+
+        assertTrue(ProjectsAttributeCodec.isCompact(compact));
+        assertEquals("{}", ProjectsAttributeCodec.decode(compact));
+    }
+
+    @Test
+    void roundTripOfUnicode() {
+        String projects = "{\"proj-ü\":{\"name\":\"Prøject 東京\",\"resources\":"
+                + "[{\"name\":\"brics.aip1.isambard\",\"username\":\"zoë.proj\"}]}}";
+
+        assertEquals(projects, ProjectsAttributeCodec.decode(ProjectsAttributeCodec.encode(projects)));
+    }
+
+    @Test
+    void encodeIsIdempotent() {
+        String compact = ProjectsAttributeCodec.encode(PROJECTS);
+
+        assertEquals(compact, ProjectsAttributeCodec.encode(compact));
+    }
+
+    @Test
+    void nullPassesThrough() {
+        assertNull(ProjectsAttributeCodec.encode(null));
+        assertNull(ProjectsAttributeCodec.decode(null));
+        assertFalse(ProjectsAttributeCodec.isCompact(null));
+    }
+
+    @Test
+    void jsonDecodesToItself() {
+        assertEquals(PROJECTS, ProjectsAttributeCodec.decode(PROJECTS));
+    }
+
+    @Test
+    void unexpectedFieldsAreKeptAsJson() {
+        String projects = "{\"proj-a\":{\"name\":\"Project A\",\"role\":\"PI\",\"resources\":"
+                + "[{\"name\":\"brics.aip1.isambard\",\"username\":\"alice.proj-a\"}]}}";
+
+        assertEquals(projects, ProjectsAttributeCodec.encode(projects));
+
+        String resource_field = "{\"proj-a\":{\"name\":\"Project A\",\"resources\":"
+                + "[{\"name\":\"brics.aip1.isambard\",\"username\":\"alice.proj-a\",\"uuid\":\"1234\"}]}}";
+
+        assertEquals(resource_field, ProjectsAttributeCodec.encode(resource_field));
+    }
+
+    @Test
+    void otherKeyOrderIsKeptAsJson() {
+        String projects = "{\"proj-a\":{\"resources\":"
+                + "[{\"username\":\"alice.proj-a\",\"name\":\"brics.aip1.isambard\"}],\"name\":\"Project A\"}}";
+
+        assertEquals(projects, ProjectsAttributeCodec.encode(projects));
+    }
+
+    @Test
+    void otherWhitespaceIsKeptAsJson() {
+        String projects = "{ \"proj-a\": {\"name\": \"Project A\", \"resources\": []} }";
+
+        assertEquals(projects, ProjectsAttributeCodec.encode(projects));
+    }
+
+    @Test
+    void unexpectedShapesAreKeptAsJson() {
+        String[] values = {
+                "[]",
+                "\"proj-a\"",
+                "{\"proj-a\":{\"name\":\"Project A\"}}",
+                "{\"proj-a\":{\"name\":\"Project A\",\"resources\":{}}}",
+                "{\"proj-a\":{\"name\":\"Project A\",\"resources\":[{\"username\":\"alice.proj-a\"}]}}",
+                "{\"proj-a\":[]}",
+                "not json"
+        };
+
+        for (String value : values) {
+            assertEquals(value, ProjectsAttributeCodec.encode(value));
+        }
+    }
+
+    @Test
+    void corruptCompactValueDecodesToNull() {
+        String compact = ProjectsAttributeCodec.encode(PROJECTS);
+
+        assertNull(ProjectsAttributeCodec.decode(ProjectsAttributeCodec.PREFIX + "!!not base64!!"));
+        assertNull(ProjectsAttributeCodec.decode(ProjectsAttributeCodec.PREFIX + "AAAA"));
+        assertNull(ProjectsAttributeCodec.decode(compact.substring(0, compact.length() / 2)));
+    }
+}
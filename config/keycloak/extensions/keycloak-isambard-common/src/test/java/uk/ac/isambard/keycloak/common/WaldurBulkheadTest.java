@@ -0,0 +1,129 @@
+package uk.ac.isambard.keycloak.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaldurBulkheadTest {
+
+    private static final String ENDPOINT = "https://waldur.example.org/api";
+
+    private static WaldurBulkhead bulkhead(int max_concurrent, int max_queue, long max_wait_millis) {
+        return new WaldurBulkhead("test.", max_concurrent, max_queue, max_wait_millis,
+                WaldurBulkhead.REJECT_FAIL_FAST);
+    }
+
+    @Test
+    void unknownPolicyIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new WaldurBulkhead("test.", 1, 1, 100, "retry"));
+    }
+
+    @Test
+    void noLimitAlwaysAdmits() {
+        WaldurBulkhead bulkhead = bulkhead(0, 0, 0);
+
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(bulkhead.acquire(ENDPOINT, "realm"));
+            assertNotNull(bulkhead.tryAcquire(ENDPOINT, "realm"));
+        }
+    }
+
+    @Test
+    void fullQueueIsRejectedStraightAway() {
+        WaldurBulkhead bulkhead = bulkhead(2, 0, 60000);
+
+        assertNotNull(bulkhead.acquire(ENDPOINT, "realm"));
+        assertNotNull(bulkhead.acquire(ENDPOINT, "realm"));
+
+        long start = System.nanoTime();
+        assertNull(bulkhead.acquire(ENDPOINT, "realm"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    void waitIsRejectedAfterTimeout() {
+        WaldurBulkhead bulkhead = bulkhead(1, 5, 100);
+
+        assertNotNull(bulkhead.acquire(ENDPOINT, "realm"));
+
+        long start = System.nanoTime();
+        assertNull(bulkhead.acquire(ENDPOINT, "realm"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void queuedCallIsAdmittedWhenPermitIsReleased() throws Exception {
+        WaldurBulkhead bulkhead = bulkhead(1, 1, 10000);
+        WaldurBulkhead.Permit held = bulkhead.acquire(ENDPOINT, "realm");
+        assertNotNull(held);
+
+        CountDownLatch started = new CountDownLatch(1);
+
+        CompletableFuture<WaldurBulkhead.Permit> queued = CompletableFuture.supplyAsync(() -> {
+            started.countDown();
+            return bulkhead.acquire(ENDPOINT, "realm");
+        });
+
+        started.await();
+
+        // give the call time to join the queue, as how many are waiting is not visible
+        Thread.sleep(200);
+
+        // the queue of one is now full
+        assertNull(bulkhead.acquire(ENDPOINT, "realm"));
+
+        held.close();
+
+        assertNotNull(queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void tryAcquireDoesNotWait() {
+        WaldurBulkhead bulkhead = bulkhead(1, 5, 60000);
+
+        WaldurBulkhead.Permit permit = bulkhead.tryAcquire(ENDPOINT, "realm");
+        assertNotNull(permit);
+        assertNull(bulkhead.tryAcquire(ENDPOINT, "realm"));
+
+        permit.close();
+        assertNotNull(bulkhead.tryAcquire(ENDPOINT, "realm"));
+    }
+
+    @Test
+    void compartmentsAreSeparate() {
+        WaldurBulkhead bulkhead = bulkhead(1, 0, 0);
+
+        assertNotNull(bulkhead.acquire(ENDPOINT, "realm"));
+        assertNull(bulkhead.acquire(ENDPOINT, "realm"));
+
+        assertNotNull(bulkhead.acquire(ENDPOINT, "other-realm"));
+        assertNotNull(bulkhead.acquire("https://other.example.org/api", "realm"));
+    }
+
+    @Test
+    void permitIsReleasedOnlyOnce() {
+        WaldurBulkhead bulkhead = bulkhead(1, 0, 0);
+
+        WaldurBulkhead.Permit permit = bulkhead.acquire(ENDPOINT, "realm");
+        permit.close();
+        permit.close();
+
+        assertNotNull(bulkhead.acquire(ENDPOINT, "realm"));
+        assertNull(bulkhead.acquire(ENDPOINT, "realm"));
+    }
+
+    @Test
+    void rejectionPolicyIsKept() {
+        assertEquals(WaldurBulkhead.REJECT_DEGRADE,
+                new WaldurBulkhead("test.", 1, 0, 0, WaldurBulkhead.REJECT_DEGRADE).getRejectionPolicy());
+    }
+}
@@ -0,0 +1,213 @@
+package uk.ac.isambard.keycloak.protocol.oidc.mappers;
+
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.keycloak.tracing.NoopTracingProvider;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.util.JsonSerialization;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * JMH benchmarks for building the Isambard claims at token issuance time.
+ *
+ * The Keycloak models are replaced by simple in-memory fakes and the Waldur API call
+ * is replaced by decoding a canned response, so this measures only the work done by
+ * the mapper itself. Run with
+ *
+ *   mvn -P benchmark test-compile exec:exec
+ *
+ * which also reports the allocation rate (-prof gc).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class IsambardProtocolMapperBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int projectCount;
+
+    @Param({"1", "5"})
+    public int resourcesPerProject;
+
+    /** "fresh" fetches (the canned) status from Waldur, "cached" uses the user attributes */
+    @Param({"fresh", "cached"})
+    public String path;
+
+    private IsambardProtocolMapper mapper;
+    private ProtocolMapperModel mappingModel;
+    private UserSessionModel userSession;
+    private KeycloakSession keycloakSession;
+    private ClientSessionContext clientSessionCtx;
+
+    /** The mapper with the Waldur API call replaced by decoding a canned response */
+    static class StubbedMapper extends IsambardProtocolMapper {
+        private final String response;
+
+        StubbedMapper(String response) {
+            this.response = response;
+        }
+
+        @Override
+        protected AuthorisationStatus checkEmailHasAccess(KeycloakSession session,
+                                                          String email,
+                                                          String waldur_api_url,
+                                                          String waldur_api_key) {
+            try {
+                return JsonSerialization.readValue(response, AuthorisationStatus.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Creates a fake implementation of a Keycloak interface, where each method is
+     * looked up by name in the passed map. Anything not in the map returns null.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> iface, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface},
+                (proxy, method, args) -> {
+                    Function<Object[], Object> impl = methods.get(method.getName());
+
+                    if (impl != null) {
+                        return impl.apply(args);
+                    } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    } else if (method.getName().equals("toString")) {
+                        return iface.getSimpleName();
+                    }
+
+                    return null;
+                });
+    }
+
+    private static String waldurResponse(int projectCount, int resourcesPerProject) throws IOException {
+        IsambardProtocolMapper.AuthorisationStatus status = new IsambardProtocolMapper.AuthorisationStatus();
+        status.email = "user@example.com";
+        status.status = "active";
+        status.short_name = "user";
+
+        for (int p = 0; p < projectCount; p++) {
+            IsambardProtocolMapper.ProjectInfo project = new IsambardProtocolMapper.ProjectInfo();
+            project.name = "Project " + p;
+
+            for (int r = 0; r < resourcesPerProject; r++) {
+                IsambardProtocolMapper.ResourceInfo resource = new IsambardProtocolMapper.ResourceInfo();
+                resource.name = "brics.aip" + r + ".clusters.shared";
+                resource.username = "user.project" + p;
+                project.resources.add(resource);
+            }
+
+            status.projects.put("project" + p, project);
+        }
+
+        return JsonSerialization.writeValueAsString(status);
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String response = waldurResponse(projectCount, resourcesPerProject);
+        mapper = new StubbedMapper(response);
+
+        Map<String, String> config = new HashMap<>();
+        config.put("access.token.claim", "true");
+
+        if (path.equals("fresh")) {
+            config.put("waldur.api.url", "http://waldur.invalid/api");
+            config.put("waldur.api.key", "key");
+        }
+
+        mappingModel = new ProtocolMapperModel();
+        mappingModel.setName("isambard");
+        mappingModel.setProtocolMapper(IsambardProtocolMapper.PROVIDER_ID);
+        mappingModel.setConfig(config);
+
+        // the cached path reads the attributes written by a previous fresh fetch
+        Map<String, List<String>> attributes = new HashMap<>();
+        IsambardProtocolMapper.AuthorisationStatus status =
+                JsonSerialization.readValue(response, IsambardProtocolMapper.AuthorisationStatus.class);
+        attributes.put("short_name", new ArrayList<>(Collections.singletonList(status.short_name)));
+        attributes.put("projects", new ArrayList<>(Collections.singletonList(
+                JsonSerialization.writeValueAsString(status.projects))));
+
+        Map<String, Function<Object[], Object>> user = new HashMap<>();
+        user.put("getEmail", args -> "user@example.com");
+        user.put("getUsername", args -> "user");
+        user.put("getAttributes", args -> attributes);
+        user.put("getFirstAttribute", args -> {
+            List<String> values = attributes.get((String) args[0]);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        });
+        user.put("setSingleAttribute", args -> {
+            attributes.put((String) args[0], new ArrayList<>(Collections.singletonList((String) args[1])));
+            return null;
+        });
+        user.put("removeAttribute", args -> attributes.remove((String) args[0]));
+        UserModel userModel = fake(UserModel.class, user);
+
+        RealmModel realm = fake(RealmModel.class, Collections.singletonMap("getName", args -> "benchmark"));
+
+        Map<String, Function<Object[], Object>> session = new HashMap<>();
+        session.put("getUser", args -> userModel);
+        session.put("getRealm", args -> realm);
+        userSession = fake(UserSessionModel.class, session);
+
+        ClientModel client = fake(ClientModel.class, Collections.singletonMap("getClientId", args -> "clifton"));
+        AuthenticatedClientSessionModel clientSession = fake(AuthenticatedClientSessionModel.class,
+                Collections.singletonMap("getClient", args -> client));
+        clientSessionCtx = fake(ClientSessionContext.class,
+                Collections.singletonMap("getClientSession", args -> clientSession));
+
+        TracingProvider tracing = new NoopTracingProvider();
+        keycloakSession = fake(KeycloakSession.class, Collections.singletonMap("getProvider",
+                args -> args[0] == TracingProvider.class ? tracing : null));
+
+        // run once so the fresh path is measuring the steady state where
+        // the cached attributes are already up to date
+        setClaim();
+    }
+
+    @Benchmark
+    public IDToken setClaim() {
+        AccessToken token = new AccessToken();
+        mapper.setClaim(token, mappingModel, userSession, keycloakSession, clientSessionCtx);
+        return token;
+    }
+}
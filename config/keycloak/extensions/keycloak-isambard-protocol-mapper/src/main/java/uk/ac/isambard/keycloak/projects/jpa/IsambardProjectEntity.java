@@ -0,0 +1,80 @@
+package uk.ac.isambard.keycloak.projects.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * A project that a user is a member of, as returned by Waldur. The resources
+ * of the project are held in IsambardProjectResourceEntity rows.
+ */
+@Entity
+@Table(name = "ISAMBARD_PROJECT")
+@NamedQueries({
+        @NamedQuery(name = "findIsambardProjectsByUser",
+                query = "select p from IsambardProjectEntity p where p.realmId = :realmId"
+                        + " and p.userId = :userId order by p.projectKey"),
+        @NamedQuery(name = "deleteIsambardProjectsByUser",
+                query = "delete from IsambardProjectEntity p where p.realmId = :realmId and p.userId = :userId")
+})
+public class IsambardProjectEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "USER_ID", nullable = false)
+    private String userId;
+
+    @Column(name = "PROJECT_KEY", nullable = false)
+    private String projectKey;
+
+    @Column(name = "NAME")
+    private String name;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public void setProjectKey(String projectKey) {
+        this.projectKey = projectKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,70 @@
+package uk.ac.isambard.keycloak.projects.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * A resource of a project that a user is a member of, together with the
+ * username the user has on that resource.
+ */
+@Entity
+@Table(name = "ISAMBARD_PROJECT_RESOURCE")
+@NamedQueries({
+        @NamedQuery(name = "findIsambardProjectResourcesByUser",
+                query = "select r from IsambardProjectResourceEntity r, IsambardProjectEntity p"
+                        + " where r.projectId = p.id and p.realmId = :realmId and p.userId = :userId"
+                        + " order by r.resource"),
+        @NamedQuery(name = "deleteIsambardProjectResourcesByProjects",
+                query = "delete from IsambardProjectResourceEntity r where r.projectId in :projectIds")
+})
+public class IsambardProjectResourceEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "PROJECT_ID", nullable = false)
+    private String projectId;
+
+    @Column(name = "RESOURCE", nullable = false)
+    private String resource;
+
+    @Column(name = "USERNAME")
+    private String username;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public void setProjectId(String projectId) {
+        this.projectId = projectId;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+}
@@ -0,0 +1,249 @@
+package uk.ac.isambard.keycloak.projects.jpa;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.persistence.EntityManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Store of the projects and resources that users have in Waldur, held as one
+ * row per project and per resource in the ISAMBARD_PROJECT and
+ * ISAMBARD_PROJECT_RESOURCE tables rather than as a JSON user attribute.
+ *
+ * Updates are diffed against the rows already stored, so that only the projects
+ * and resources that have changed are written. The tables are indexed by resource
+ * and project, so that the users with access to either can be found without
+ * reading every user.
+ */
+public class IsambardProjectStore {
+
+    /** A project, with the username the user has on each of its resources */
+    public static final class Project {
+        private final String name;
+        private final Map<String, String> resources;
+
+        public Project(String name, Map<String, String> resources) {
+            this.name = name;
+            this.resources = resources;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** The username the user has on each resource, by resource name */
+        public Map<String, String> getResources() {
+            return resources;
+        }
+    }
+
+    private IsambardProjectStore() {
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /** Whether the store can be used, i.e. Keycloak is using a JPA database */
+    public static boolean isAvailable(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class) != null;
+    }
+
+    /** Returns the projects of the user, by project key */
+    public static Map<String, Project> read(KeycloakSession session, RealmModel realm, UserModel user) {
+        EntityManager em = em(session);
+
+        Map<String, String> keys = new HashMap<>();
+        Map<String, Project> projects = new LinkedHashMap<>();
+
+        for (IsambardProjectEntity project : em.createNamedQuery("findIsambardProjectsByUser", IsambardProjectEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", user.getId())
+                .getResultList()) {
+            keys.put(project.getId(), project.getProjectKey());
+            projects.put(project.getProjectKey(), new Project(project.getName(), new LinkedHashMap<>()));
+        }
+
+        for (IsambardProjectResourceEntity resource : findResources(em, realm, user)) {
+            Project project = projects.get(keys.get(resource.getProjectId()));
+
+            if (project != null) {
+                project.getResources().put(resource.getResource(), resource.getUsername());
+            }
+        }
+
+        return projects;
+    }
+
+    private static List<IsambardProjectResourceEntity> findResources(EntityManager em, RealmModel realm, UserModel user) {
+        return em.createNamedQuery("findIsambardProjectResourcesByUser", IsambardProjectResourceEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", user.getId())
+                .getResultList();
+    }
+
+    /**
+     * Updates the stored projects of the user to match those passed, only adding,
+     * changing or removing the rows that differ.
+     *
+     * @return the number of rows that were written
+     */
+    public static int update(KeycloakSession session, RealmModel realm, UserModel user, Map<String, Project> projects) {
+        EntityManager em = em(session);
+        int written = 0;
+
+        Map<String, IsambardProjectEntity> existing = new HashMap<>();
+
+        for (IsambardProjectEntity project : em.createNamedQuery("findIsambardProjectsByUser", IsambardProjectEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", user.getId())
+                .getResultList()) {
+            existing.put(project.getProjectKey(), project);
+        }
+
+        // existing resources, by project id and then resource name
+        Map<String, Map<String, IsambardProjectResourceEntity>> existing_resources = new HashMap<>();
+
+        for (IsambardProjectResourceEntity resource : findResources(em, realm, user)) {
+            existing_resources.computeIfAbsent(resource.getProjectId(), k -> new HashMap<>())
+                    .put(resource.getResource(), resource);
+        }
+
+        for (Map.Entry<String, Project> entry : projects.entrySet()) {
+            IsambardProjectEntity project = existing.remove(entry.getKey());
+
+            if (project == null) {
+                project = new IsambardProjectEntity();
+                project.setId(KeycloakModelUtils.generateId());
+                project.setRealmId(realm.getId());
+                project.setUserId(user.getId());
+                project.setProjectKey(entry.getKey());
+                project.setName(entry.getValue().getName());
+                em.persist(project);
+                written += 1;
+            } else if (!Objects.equals(project.getName(), entry.getValue().getName())) {
+                project.setName(entry.getValue().getName());
+                written += 1;
+            }
+
+            Map<String, IsambardProjectResourceEntity> resources = existing_resources.remove(project.getId());
+
+            if (resources == null) {
+                resources = new HashMap<>();
+            }
+
+            for (Map.Entry<String, String> wanted : entry.getValue().getResources().entrySet()) {
+                IsambardProjectResourceEntity resource = resources.remove(wanted.getKey());
+
+                if (resource == null) {
+                    resource = new IsambardProjectResourceEntity();
+                    resource.setId(KeycloakModelUtils.generateId());
+                    resource.setProjectId(project.getId());
+                    resource.setResource(wanted.getKey());
+                    resource.setUsername(wanted.getValue());
+                    em.persist(resource);
+                    written += 1;
+                } else if (!Objects.equals(resource.getUsername(), wanted.getValue())) {
+                    resource.setUsername(wanted.getValue());
+                    written += 1;
+                }
+            }
+
+            // resources the user no longer has in this project
+            for (IsambardProjectResourceEntity resource : resources.values()) {
+                em.remove(resource);
+                written += 1;
+            }
+        }
+
+        // projects the user is no longer a member of
+        for (IsambardProjectEntity project : existing.values()) {
+            Map<String, IsambardProjectResourceEntity> resources = existing_resources.remove(project.getId());
+
+            if (resources != null) {
+                for (IsambardProjectResourceEntity resource : resources.values()) {
+                    em.remove(resource);
+                    written += 1;
+                }
+            }
+
+            em.remove(project);
+            written += 1;
+        }
+
+        return written;
+    }
+
+    /** Removes all of the stored projects of the user */
+    public static void clear(KeycloakSession session, RealmModel realm, UserModel user) {
+        EntityManager em = em(session);
+
+        List<String> project_ids = new ArrayList<>();
+
+        for (IsambardProjectEntity project : em.createNamedQuery("findIsambardProjectsByUser", IsambardProjectEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", user.getId())
+                .getResultList()) {
+            project_ids.add(project.getId());
+        }
+
+        if (project_ids.isEmpty()) {
+            return;
+        }
+
+        em.createNamedQuery("deleteIsambardProjectResourcesByProjects")
+                .setParameter("projectIds", project_ids)
+                .executeUpdate();
+
+        em.createNamedQuery("deleteIsambardProjectsByUser")
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", user.getId())
+                .executeUpdate();
+    }
+
+    /**
+     * Returns up to max ids of the users in the realm with access to the passed
+     * resource through any of their projects, ordered by id and starting after the
+     * passed id (or from the beginning if this is null).
+     */
+    public static List<String> usersWithResource(KeycloakSession session, RealmModel realm,
+                                                 String resource, String after, int max) {
+        return em(session).createQuery("select distinct p.userId"
+                        + " from IsambardProjectResourceEntity r, IsambardProjectEntity p"
+                        + " where r.resource = :resource and r.projectId = p.id"
+                        + " and p.realmId = :realmId and p.userId > :after"
+                        + " order by p.userId", String.class)
+                .setParameter("resource", resource)
+                .setParameter("realmId", realm.getId())
+                .setParameter("after", after == null ? "" : after)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    /**
+     * Returns up to max ids of the users in the realm who are members of the passed
+     * project, ordered by id and starting after the passed id (or from the beginning
+     * if this is null).
+     */
+    public static List<String> usersInProject(KeycloakSession session, RealmModel realm,
+                                              String project_key, String after, int max) {
+        return em(session).createQuery("select p.userId from IsambardProjectEntity p"
+                        + " where p.projectKey = :projectKey and p.realmId = :realmId and p.userId > :after"
+                        + " order by p.userId", String.class)
+                .setParameter("projectKey", project_key)
+                .setParameter("realmId", realm.getId())
+                .setParameter("after", after == null ? "" : after)
+                .setMaxResults(max)
+                .getResultList();
+    }
+}
@@ -0,0 +1,28 @@
+package uk.ac.isambard.keycloak.projects.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class IsambardProjectsJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return Arrays.<Class<?>>asList(IsambardProjectEntity.class, IsambardProjectResourceEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/isambard-projects-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return IsambardProjectsJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,43 @@
+package uk.ac.isambard.keycloak.projects.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserModel;
+
+public class IsambardProjectsJpaEntityProviderFactory implements JpaEntityProviderFactory {
+    public static final String PROVIDER_ID = "isambard-projects-entity-provider";
+
+    private static final IsambardProjectsJpaEntityProvider SINGLETON = new IsambardProjectsJpaEntityProvider();
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return SINGLETON;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // remove the projects of users when they are deleted
+        factory.register(event -> {
+            if (event instanceof UserModel.UserRemovedEvent) {
+                UserModel.UserRemovedEvent removed = (UserModel.UserRemovedEvent) event;
+                IsambardProjectStore.clear(removed.getKeycloakSession(), removed.getRealm(), removed.getUser());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+}
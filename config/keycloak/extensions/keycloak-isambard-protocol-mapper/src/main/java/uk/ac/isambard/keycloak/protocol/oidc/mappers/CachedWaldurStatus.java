@@ -0,0 +1,244 @@
+package uk.ac.isambard.keycloak.protocol.oidc.mappers;
+
+import uk.ac.isambard.keycloak.protocol.oidc.mappers.IsambardProtocolMapper.AuthorisationStatus;
+import uk.ac.isambard.keycloak.protocol.oidc.mappers.IsambardProtocolMapper.ProjectInfo;
+import uk.ac.isambard.keycloak.protocol.oidc.mappers.IsambardProtocolMapper.ResourceInfo;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact, immutable copy of a status fetched from Waldur, for holding many
+ * statuses in memory at once.
+ *
+ * The decoded AuthorisationStatus holds a HashMap of projects, each with an
+ * ArrayList of resources and its own copy of every string. Here the projects
+ * and resources are held in flat arrays, and the strings that many users share
+ * (project keys, project names and resource names) are interned, so each of
+ * them is held once however many users have it. Only the short name, usernames
+ * and reason are per user.
+ *
+ * The projects are held in the iteration order of the status they were copied
+ * from, so a status rebuilt with toStatus serialises to the same JSON.
+ */
+final class CachedWaldurStatus {
+
+    /** The most strings that are interned, after which strings are held as they are */
+    private static final int MAX_INTERNED = 100_000;
+
+    private static final Map<String, String> interned = new ConcurrentHashMap<>();
+
+    private static final String[] NO_STRINGS = new String[0];
+    private static final int[] NO_RESOURCES = {0};
+
+    private final long fetched_at;
+    private final String email;
+    private final String status;
+    private final String short_name;
+    private final String invited_by;
+    private final String reason;
+
+    private final String[] project_keys;
+    private final String[] project_names;
+
+    /** The resources of project i are from resource_starts[i] up to resource_starts[i + 1] */
+    private final int[] resource_starts;
+    private final String[] resource_names;
+    private final String[] resource_usernames;
+
+    private CachedWaldurStatus(long fetched_at, String email, String status, String short_name,
+                               String invited_by, String reason, String[] project_keys,
+                               String[] project_names, int[] resource_starts, String[] resource_names,
+                               String[] resource_usernames) {
+        this.fetched_at = fetched_at;
+        this.email = email;
+        this.status = status;
+        this.short_name = short_name;
+        this.invited_by = invited_by;
+        this.reason = reason;
+        this.project_keys = project_keys;
+        this.project_names = project_names;
+        this.resource_starts = resource_starts;
+        this.resource_names = resource_names;
+        this.resource_usernames = resource_usernames;
+    }
+
+    /** Returns the shared copy of the passed string */
+    static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        String existing = interned.get(value);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        if (interned.size() >= MAX_INTERNED) {
+            return value;
+        }
+
+        existing = interned.putIfAbsent(value, value);
+        return existing == null ? value : existing;
+    }
+
+    /** Number of strings currently interned */
+    static int internedCount() {
+        return interned.size();
+    }
+
+    /** Copies the passed status, which was fetched from Waldur at the passed time */
+    static CachedWaldurStatus of(AuthorisationStatus access, long fetched_at) {
+        Map<String, ProjectInfo> projects = access.projects == null ? new HashMap<>() : access.projects;
+
+        if (projects.isEmpty()) {
+            return new CachedWaldurStatus(fetched_at, access.email, intern(access.status), access.short_name,
+                    access.invited_by, access.reason, NO_STRINGS, NO_STRINGS, NO_RESOURCES, NO_STRINGS, NO_STRINGS);
+        }
+
+        int resource_count = 0;
+
+        for (ProjectInfo project : projects.values()) {
+            if (project != null && project.resources != null) {
+                resource_count += project.resources.size();
+            }
+        }
+
+        String[] project_keys = new String[projects.size()];
+        String[] project_names = new String[projects.size()];
+        int[] resource_starts = new int[projects.size() + 1];
+        String[] resource_names = new String[resource_count];
+        String[] resource_usernames = new String[resource_count];
+
+        int i = 0;
+        int r = 0;
+
+        for (Map.Entry<String, ProjectInfo> entry : projects.entrySet()) {
+            ProjectInfo project = entry.getValue();
+
+            project_keys[i] = intern(entry.getKey());
+            project_names[i] = project == null ? null : intern(project.name);
+            resource_starts[i] = r;
+
+            if (project != null && project.resources != null) {
+                for (ResourceInfo resource : project.resources) {
+                    resource_names[r] = intern(resource.name);
+                    resource_usernames[r] = resource.username;
+                    r += 1;
+                }
+            }
+
+            i += 1;
+        }
+
+        resource_starts[i] = r;
+
+        return new CachedWaldurStatus(fetched_at, access.email, intern(access.status), access.short_name,
+                access.invited_by, access.reason, project_keys, project_names, resource_starts, resource_names,
+                resource_usernames);
+    }
+
+    /** When the status was fetched from Waldur (epoch milliseconds) */
+    long getFetchedAt() {
+        return fetched_at;
+    }
+
+    String getStatus() {
+        return status;
+    }
+
+    int getProjectCount() {
+        return project_keys.length;
+    }
+
+    /**
+     * Rebuilds the status in the form used to build claims. The returned status is
+     * a new object, so callers are free to change it.
+     */
+    AuthorisationStatus toStatus() {
+        AuthorisationStatus access = new AuthorisationStatus();
+        access.email = email;
+        access.status = status;
+        access.short_name = short_name;
+        access.invited_by = invited_by;
+        access.reason = reason;
+
+        // a HashMap filled in its own iteration order iterates in the same order
+        access.projects = new HashMap<>();
+
+        for (int i = 0; i < project_keys.length; i++) {
+            ProjectInfo project = new ProjectInfo();
+            project.name = project_names[i];
+            project.resources.ensureCapacity(resource_starts[i + 1] - resource_starts[i]);
+
+            for (int r = resource_starts[i]; r < resource_starts[i + 1]; r++) {
+                ResourceInfo resource = new ResourceInfo();
+                resource.name = resource_names[r];
+                resource.username = resource_usernames[r];
+                project.resources.add(resource);
+            }
+
+            access.projects.put(project_keys[i], project);
+        }
+
+        return access;
+    }
+
+    /**
+     * Bounded, least recently used cache of statuses by scope and email, held in the
+     * heap of this node. The scope names the realm and Waldur endpoint the status
+     * came from (see IsambardProtocolMapper.statusScope), so a status is only ever
+     * handed back to mappers for the same realm and endpoint.
+     */
+    static final class Cache {
+        private final int max_size;
+        private final long ttl_millis;
+        private final LinkedHashMap<String, CachedWaldurStatus> statuses;
+
+        Cache(int max_size, long ttl_millis) {
+            this.max_size = max_size;
+            this.ttl_millis = ttl_millis;
+            this.statuses = new LinkedHashMap<String, CachedWaldurStatus>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedWaldurStatus> eldest) {
+                    return size() > Cache.this.max_size;
+                }
+            };
+        }
+
+        private static String key(String scope, String email) {
+            return scope + "\n" + email;
+        }
+
+        /**
+         * Returns the status of the passed email in the passed scope if it was fetched
+         * within the ttl, or null
+         */
+        synchronized CachedWaldurStatus get(String scope, String email, long now) {
+            String key = key(scope, email);
+            CachedWaldurStatus cached = statuses.get(key);
+
+            if (cached == null) {
+                return null;
+            }
+
+            if (now - cached.getFetchedAt() >= ttl_millis) {
+                statuses.remove(key);
+                return null;
+            }
+
+            return cached;
+        }
+
+        synchronized void put(String scope, String email, CachedWaldurStatus cached) {
+            statuses.put(key(scope, email), cached);
+        }
+
+        synchronized int size() {
+            return statuses.size();
+        }
+    }
+}
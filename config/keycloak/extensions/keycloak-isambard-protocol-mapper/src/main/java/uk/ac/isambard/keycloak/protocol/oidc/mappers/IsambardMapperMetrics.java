@@ -0,0 +1,114 @@
+package uk.ac.isambard.keycloak.protocol.oidc.mappers;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics for the Isambard protocol mapper, labelled by the client id that the
+ * token is being issued for so that we can see which relying parties drive load.
+ *
+ * These are registered with the global Micrometer registry, which Keycloak
+ * exposes on its management interface when started with --metrics-enabled=true.
+ */
+final class IsambardMapperMetrics {
+
+    static final String PREFIX = "isambard.mapper.";
+
+    private static final String UNKNOWN_CLIENT = "unknown";
+
+    private IsambardMapperMetrics() {
+    }
+
+    private static MeterRegistry registry() {
+        return Metrics.globalRegistry;
+    }
+
+    private static String client(String client_id) {
+        return client_id == null ? UNKNOWN_CLIENT : client_id;
+    }
+
+    /** Record the latency of a call to the Waldur API */
+    static void waldurCall(String client_id, long duration_nanos, boolean succeeded) {
+        Timer.builder(PREFIX + "waldur.duration")
+                .description("Latency of Waldur API calls made by the Isambard protocol mapper")
+                .tag("client_id", client(client_id))
+                .tag("outcome", succeeded ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(registry())
+                .record(duration_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Record that claims were built from the cached user attributes rather than Waldur */
+    static void fallback(String client_id, String reason) {
+        Counter.builder(PREFIX + "fallback")
+                .description("Tokens whose Isambard claims came from cached user attributes")
+                .tag("client_id", client(client_id))
+                .tag("reason", reason)
+                .register(registry())
+                .increment();
+    }
+
+    /** Record the size of the Isambard claims added to a token */
+    static void claimSize(String client_id, long bytes) {
+        DistributionSummary.builder(PREFIX + "claim.size")
+                .description("Size of the Isambard claims added to each token")
+                .baseUnit("bytes")
+                .tag("client_id", client(client_id))
+                .register(registry())
+                .record(bytes);
+    }
+
+    /** Record that claims were built from the status fetched by the authenticator at login */
+    static void loginStatusReused(String client_id) {
+        Counter.builder(PREFIX + "login_status.reused")
+                .description("Tokens whose Isambard claims reused the Waldur status fetched at login")
+                .tag("client_id", client(client_id))
+                .register(registry())
+                .increment();
+    }
+
+    /** Record that the status came from the Waldur status store, either "fresh" or "stale" */
+    static void statusStore(String client_id, String freshness) {
+        Counter.builder(PREFIX + "status_store")
+                .description("Tokens whose Waldur status came from the Waldur status store")
+                .tag("client_id", client(client_id))
+                .tag("freshness", freshness)
+                .register(registry())
+                .increment();
+    }
+
+    /** Record whether the status was found in the in-memory status cache */
+    static void statusCache(String client_id, boolean hit) {
+        Counter.builder(PREFIX + "status_cache")
+                .description("Lookups of the Waldur status in the in-memory status cache")
+                .tag("client_id", client(client_id))
+                .tag("result", hit ? "hit" : "miss")
+                .register(registry())
+                .increment();
+    }
+
+    /** Record whether the cached user attributes had to be written or were already up to date */
+    static void attributeWrite(String client_id, boolean performed) {
+        Counter.builder(PREFIX + "attribute.writes")
+                .description("Cached user attribute updates performed or skipped by the Isambard protocol mapper")
+                .tag("client_id", client(client_id))
+                .tag("result", performed ? "performed" : "skipped")
+                .register(registry())
+                .increment();
+    }
+
+    /** Record the Waldur access.status seen when building claims */
+    static void outcome(String client_id, String status) {
+        Counter.builder(PREFIX + "outcomes")
+                .description("Isambard protocol mapper outcomes by Waldur access status")
+                .tag("client_id", client(client_id))
+                .tag("status", status == null || status.isEmpty() ? "error" : status)
+                .register(registry())
+                .increment();
+    }
+}
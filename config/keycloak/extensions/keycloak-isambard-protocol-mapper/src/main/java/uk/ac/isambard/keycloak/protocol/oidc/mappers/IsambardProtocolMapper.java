@@ -1,10 +1,16 @@
 package uk.ac.isambard.keycloak.protocol.oidc.mappers;
 
+import org.keycloak.Config;
+import org.keycloak.OAuthErrorException;
 import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperContainerModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAccessTokenMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
@@ -13,14 +19,42 @@ import org.keycloak.protocol.oidc.mappers.UserInfoTokenMapper;
 import org.keycloak.representations.IDToken;
 import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.util.JsonSerialization;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.ErrorResponseException;
+import org.keycloak.tracing.TracingProvider;
+import org.keycloak.tracing.TracingProviderUtil;
+
+import uk.ac.isambard.keycloak.common.Globs;
+import uk.ac.isambard.keycloak.common.ProjectsAttributeCodec;
+import uk.ac.isambard.keycloak.common.ShortNames;
+import uk.ac.isambard.keycloak.common.WaldurBulkhead;
+import uk.ac.isambard.keycloak.common.WaldurExecutor;
+import uk.ac.isambard.keycloak.common.WaldurHedger;
+import uk.ac.isambard.keycloak.projects.jpa.IsambardProjectStore;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import jakarta.ws.rs.core.Response;
 
 import org.jboss.logging.Logger;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * OIDC Protocol Mapper that fetches user project and resource information from the Waldur API and adds it as claims to tokens at issuance time.
@@ -35,17 +69,77 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
 
     public static final String PROVIDER_ID = "isambard-protocol-mapper";
 
-    private static class ResourceInfo {
+    public static final String PROJECTS_FORMAT_FULL = "full";
+    public static final String PROJECTS_FORMAT_COMPACT = "compact";
+
+    public static final String PROJECTS_MODE_EMBED = "embed";
+    public static final String PROJECTS_MODE_DIGEST = "digest";
+
+    /** User attribute holding the digest of the cached short_name and projects */
+    public static final String ATTRIBUTES_DIGEST = "isambard_digest";
+
+    /**
+     * User attribute holding the digest of the cached attributes when they were last
+     * copied to the project tables, so that the tables are only updated on change
+     */
+    public static final String PROJECT_ROWS_DIGEST = "isambard_project_rows_digest";
+
+    /**
+     * User session notes set by the Isambard authenticator, holding the digest of
+     * the status it fetched from Waldur at login and when (epoch milliseconds)
+     */
+    public static final String STATUS_DIGEST_NOTE = "isambard_status_digest";
+    public static final String STATUS_TIME_NOTE = "isambard_status_time";
+
+    private static final String DEFAULT_STATUS_MAX_AGE = "30";
+
+    /**
+     * The optional memory-mapped store of Waldur statuses, which is only used when
+     * a file is configured for it (see init), together with its settings
+     */
+    private static volatile WaldurStatusStore statusStore;
+    private static long statusStoreTtlMillis;
+    private static long statusStoreMaxStaleMillis;
+    private static int statusStoreWarmCount;
+    private static int statusStoreWarmRate;
+
+    /** The status scopes (see statusScope) that warming has been started for */
+    private static final Set<String> statusStoreWarmed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The optional in-memory cache of Waldur statuses, which is only used when a
+     * size is configured for it (see init)
+     */
+    private static volatile CachedWaldurStatus.Cache statusCache;
+
+    /** Limits the concurrent calls to Waldur, configured in init */
+    private static volatile WaldurBulkhead waldurBulkhead = new WaldurBulkhead(IsambardMapperMetrics.PREFIX,
+            20, 100, 2000L, WaldurBulkhead.REJECT_FALLBACK);
+
+    /** Hedges slow calls to Waldur, configured in init and off by default */
+    private static volatile WaldurHedger waldurHedger = new WaldurHedger(IsambardMapperMetrics.PREFIX,
+            0, 0.05, 50L);
+
+    public static final String PROJECTS_ENCODING_JSON = "json";
+    public static final String PROJECTS_ENCODING_COMPACT = "compact";
+
+    /** Whether the projects attribute is written in the compact form (see ProjectsAttributeCodec) */
+    private static volatile boolean compactProjects;
+
+    private static final AtomicLong attributeWritesPerformed = new AtomicLong();
+    private static final AtomicLong attributeWritesSkipped = new AtomicLong();
+
+    static class ResourceInfo {
         public String name = "";
         public String username = "";
     }
 
-    private static class ProjectInfo {
+    static class ProjectInfo {
         public String name = "";
         public ArrayList<ResourceInfo> resources = new ArrayList<>();
     }
 
-    private static class AuthorisationStatus {
+    static class AuthorisationStatus {
         public String email = "";
         public String status = "";
         public String short_name = "";
@@ -73,11 +167,117 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
         property.setHelpText("Key used to authenticate with the Waldur API.");
         configProperties.add(property);
 
+        property = new ProviderConfigProperty();
+        property.setName("waldur.status.max_age");
+        property.setLabel("Login Status Max Age");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setDefaultValue(DEFAULT_STATUS_MAX_AGE);
+        property.setHelpText("Number of seconds for which tokens are built from the status that the Isambard "
+                + "authenticator fetched from Waldur at login, rather than fetching it again. "
+                + "Set to 0 to always fetch the status from Waldur.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName("projects.resource.patterns");
+        property.setLabel("Resource Patterns");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Semicolon-separated list of resource names or platform keys (glob) to include in the "
+                + "projects claim, e.g. brics.aip1.*;brics.i3.clusters.shared. Projects with no matching resources "
+                + "are left out. Attach the mapper to a client or client scope to filter per audience. "
+                + "Leave empty to include every resource.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName("projects.claim.format");
+        property.setLabel("Projects Claim Format");
+        property.setType(ProviderConfigProperty.LIST_TYPE);
+        property.setOptions(Arrays.asList(PROJECTS_FORMAT_FULL, PROJECTS_FORMAT_COMPACT));
+        property.setDefaultValue(PROJECTS_FORMAT_FULL);
+        property.setHelpText("'full' adds each project with its name and list of resources. 'compact' maps each "
+                + "project to an object of resource name to username, dropping the project name.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName("projects.claim.mode");
+        property.setLabel("Projects Claim Mode");
+        property.setType(ProviderConfigProperty.LIST_TYPE);
+        property.setOptions(Arrays.asList(PROJECTS_MODE_EMBED, PROJECTS_MODE_DIGEST));
+        property.setDefaultValue(PROJECTS_MODE_EMBED);
+        property.setHelpText("'embed' adds the projects claim to the token. 'digest' only adds a small "
+                + "projects_digest claim, and clients fetch the full projects document from the "
+                + "realm's isambard-projects endpoint when the digest changes. That endpoint returns "
+                + "all of the user's projects, so 'digest' cannot be used with Resource Patterns.");
+        configProperties.add(property);
+
         // This adds the "Add to access token", "Add to ID token", and "Add to userinfo" checkboxes
         // Pattern used by all built-in Keycloak mappers
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, IsambardProtocolMapper.class);
     }
 
+    /**
+     * Reads the encoding to write the projects attribute in and the limits on calls
+     * to Waldur, creates the in-memory status cache if a size is configured for it,
+     * and opens the Waldur status store if a file is configured for it, e.g. with
+     * --spi-protocol-mapper--isambard-protocol-mapper--waldur-max-concurrent=20
+     * --spi-protocol-mapper--isambard-protocol-mapper--waldur-hedge-percentile=95
+     * --spi-protocol-mapper--isambard-protocol-mapper--status-cache-size=100000
+     * --spi-protocol-mapper--isambard-protocol-mapper--status-store-file=/opt/keycloak/data/isambard-status.dat
+     */
+    @Override
+    public void init(Config.Scope config) {
+        super.init(config);
+
+        compactProjects = PROJECTS_ENCODING_COMPACT.equals(
+                config.get("projects-attribute-encoding", PROJECTS_ENCODING_JSON));
+
+        try {
+            waldurBulkhead = new WaldurBulkhead(IsambardMapperMetrics.PREFIX,
+                    config.getInt("waldur-max-concurrent", 20),
+                    config.getInt("waldur-max-queue", 100),
+                    config.getLong("waldur-max-wait", 2000L),
+                    config.get("waldur-rejection-policy", WaldurBulkhead.REJECT_FALLBACK));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid Waldur bulkhead config, using the defaults: " + e.getMessage());
+        }
+
+        try {
+            waldurHedger = new WaldurHedger(IsambardMapperMetrics.PREFIX,
+                    Double.parseDouble(config.get("waldur-hedge-percentile", "0")),
+                    Double.parseDouble(config.get("waldur-hedge-budget", "0.05")),
+                    config.getLong("waldur-hedge-min-delay", 50L));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid Waldur hedge config, so not hedging: " + e.getMessage());
+        }
+
+        int cache_size = config.getInt("status-cache-size", 0);
+
+        if (cache_size > 0) {
+            statusCache = new CachedWaldurStatus.Cache(cache_size, 1000L * config.getLong("status-cache-ttl", 60L));
+            logger.info("Caching up to " + cache_size + " Waldur statuses in memory");
+        }
+
+        String file = config.get("status-store-file");
+
+        if (file == null || file.trim().isEmpty()) {
+            return;
+        }
+
+        statusStoreTtlMillis = 1000L * config.getLong("status-store-ttl", 60L);
+        statusStoreMaxStaleMillis = 1000L * config.getLong("status-store-max-stale", 3600L);
+        statusStoreWarmCount = config.getInt("status-store-warm-count", 1000);
+        statusStoreWarmRate = Math.max(1, config.getInt("status-store-warm-rate", 10));
+
+        try {
+            statusStore = WaldurStatusStore.open(Paths.get(file.trim()),
+                    config.getInt("status-store-slots", 16384),
+                    config.getInt("status-store-slot-size", 2048),
+                    config.getLong("status-store-checkpoint", 30L));
+            logger.info("Using Waldur status store " + file);
+        } catch (Exception e) {
+            logger.error("Could not open Waldur status store " + file + ": " + e.getMessage());
+        }
+    }
+
     @Override
     public String getDisplayCategory() {
         return TOKEN_MAPPER_CATEGORY;
@@ -90,7 +290,9 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
 
     @Override
     public String getHelpText() {
-        return "Fetches user projects and short_name from Waldur API at token issuance time";
+        return "Fetches user projects and short_name from Waldur API at token issuance time. If Waldur is "
+                + "too busy and the waldur-rejection-policy is fail_fast, the token request fails with a "
+                + "temporarily_unavailable OAuth error (HTTP 400) that clients should retry later.";
     }
 
     @Override
@@ -103,23 +305,615 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
         return configProperties;
     }
 
+    /**
+     * Rejects the digest claim mode together with resource patterns. The
+     * isambard-projects endpoint serves the user's full, unfiltered projects, so a
+     * client whose projects claim is filtered must not be able to read them all by
+     * switching to digest mode.
+     */
+    @Override
+    public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client,
+                               ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+        if (PROJECTS_MODE_DIGEST.equals(mapperModel.getConfig().get("projects.claim.mode"))
+                && hasResourcePatterns(mapperModel)) {
+            throw new ProtocolMapperConfigException("Projects Claim Mode 'digest' cannot be used with Resource "
+                    + "Patterns, as the isambard-projects endpoint returns all of the user's projects");
+        }
+    }
+
+    private static boolean hasResourcePatterns(ProtocolMapperModel mappingModel) {
+        String patterns = mappingModel.getConfig().get("projects.resource.patterns");
+        return patterns != null && !patterns.trim().isEmpty();
+    }
+
+    /**
+     * Whether this mapper adds the projects digest rather than the projects. A mapper
+     * saved with both digest mode and resource patterns before validateConfig rejected
+     * them embeds the filtered projects instead, so it never points its clients at
+     * the unfiltered endpoint.
+     */
+    private static boolean isDigestMode(ProtocolMapperModel mappingModel) {
+        return PROJECTS_MODE_DIGEST.equals(mappingModel.getConfig().get("projects.claim.mode"))
+                && !hasResourcePatterns(mappingModel);
+    }
+
+    /**
+     * Compiled resource patterns, keyed by the raw config value, so that each mapper
+     * instance only converts its globs once rather than on every token.
+     */
+    private static final Map<String, List<Pattern>> compiledPatterns = new ConcurrentHashMap<>();
+
+    private static List<Pattern> resourcePatterns(String patterns) {
+        return compiledPatterns.computeIfAbsent(patterns, p -> {
+            List<Pattern> compiled = new ArrayList<>();
+
+            for (String glob : p.split(";")) {
+                glob = glob.trim();
+
+                if (glob.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    compiled.add(Pattern.compile(Globs.toRegex(glob)));
+                } catch (Exception e) {
+                    logger.error("Error converting glob to regex: " + e.getMessage());
+                }
+            }
+
+            return compiled;
+        });
+    }
+
+    /**
+     * Returns only the projects and resources that the audience of this mapper needs,
+     * based on the "projects.resource.patterns" config. The projects are returned
+     * unchanged if no patterns are configured.
+     */
+    private static HashMap<String, ProjectInfo> filterProjects(HashMap<String, ProjectInfo> projects,
+                                                               ProtocolMapperModel mappingModel) {
+        if (projects == null || !hasResourcePatterns(mappingModel)) {
+            return projects;
+        }
+
+        List<Pattern> compiled = resourcePatterns(mappingModel.getConfig().get("projects.resource.patterns"));
+        HashMap<String, ProjectInfo> filtered = new HashMap<>();
+
+        for (Map.Entry<String, ProjectInfo> entry : projects.entrySet()) {
+            ProjectInfo project = entry.getValue();
+
+            if (project == null || project.resources == null) {
+                continue;
+            }
+
+            ProjectInfo kept = new ProjectInfo();
+            kept.name = project.name;
+
+            for (ResourceInfo resource : project.resources) {
+                for (Pattern pattern : compiled) {
+                    if (resource.name != null && pattern.matcher(resource.name).matches()) {
+                        kept.resources.add(resource);
+                        break;
+                    }
+                }
+            }
+
+            if (!kept.resources.isEmpty()) {
+                filtered.put(entry.getKey(), kept);
+            }
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Builds the value of the projects claim for this mapper, filtering the projects
+     * and, if configured, using the compact encoding.
+     */
+    private static Object projectsClaim(HashMap<String, ProjectInfo> projects, ProtocolMapperModel mappingModel) {
+        projects = filterProjects(projects, mappingModel);
+
+        if (projects == null || !PROJECTS_FORMAT_COMPACT.equals(mappingModel.getConfig().get("projects.claim.format"))) {
+            return projects;
+        }
+
+        Map<String, Map<String, String>> compact = new LinkedHashMap<>();
+
+        for (Map.Entry<String, ProjectInfo> entry : projects.entrySet()) {
+            Map<String, String> resources = new LinkedHashMap<>();
+
+            for (ResourceInfo resource : entry.getValue().resources) {
+                resources.put(resource.name, resource.username);
+            }
+
+            compact.put(entry.getKey(), resources);
+        }
+
+        return compact;
+    }
+
+    /**
+     * Returns the digest of a JSON-encoded projects document. This is used both as the
+     * projects_digest claim and as the ETag of the isambard-projects endpoint, so clients
+     * can tell from the token alone whether their cached copy is still current.
+     */
+    public static String projectsDigest(String projects_json) {
+        if (projects_json == null) {
+            projects_json = "{}";
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(projects_json.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (Exception e) {
+            // SHA-256 is always available on the JVM
+            throw new IllegalStateException("Could not create projects digest", e);
+        }
+    }
+
+    /**
+     * Adds either the projects claim or the projects_digest claim to the token,
+     * depending on the configured projects claim mode.
+     *
+     * @return the size in bytes of the JSON-encoded claim that was added
+     */
+    private static int addProjectsClaim(IDToken token, HashMap<String, ProjectInfo> projects,
+                                        String projects_json, ProtocolMapperModel mappingModel) {
+        if (isDigestMode(mappingModel)) {
+            String digest = projectsDigest(projects_json);
+            token.getOtherClaims().put("projects_digest", digest);
+            return digest.length();
+        }
+
+        Object claim = projectsClaim(projects, mappingModel);
+        token.getOtherClaims().put("projects", claim);
+
+        if (claim == projects && projects_json != null) {
+            // unfiltered, so we already have the encoded claim
+            return projects_json.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        try {
+            return JsonSerialization.writeValueAsBytes(claim).length;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /** Returns the projects attribute value to store for the passed projects JSON, in the passed encoding */
+    public static String projectsAttributeValue(String projects_json, String encoding) {
+        return PROJECTS_ENCODING_COMPACT.equals(encoding) ? ProjectsAttributeCodec.encode(projects_json) : projects_json;
+    }
+
+    /** Number of times the cached user attributes were written since startup */
+    public static long getAttributeWritesPerformed() {
+        return attributeWritesPerformed.get();
+    }
+
+    /** Number of times writing the cached user attributes was skipped as nothing had changed */
+    public static long getAttributeWritesSkipped() {
+        return attributeWritesSkipped.get();
+    }
+
+    /**
+     * Caches the short name and projects on the user for fallback when the API is unavailable.
+     *
+     * Nothing is written when the stored digest, short name and projects all match the
+     * passed values, which is the usual case. The attribute values are compared as well
+     * as the digest, so that an admin edit to short_name or projects that leaves the
+     * digest alone is still put right. Otherwise only the attributes that differ are
+     * written, together with the new digest. UserModel has no bulk update, so each of
+     * these is still its own write, but the user is only invalidated in the user cache
+     * once.
+     */
+    protected static boolean updateCachedAttributes(UserModel user, String short_name, String projects_json) {
+        String digest = projectsDigest(short_name + "\n" + projects_json);
+
+        if (digest.equals(user.getFirstAttribute(ATTRIBUTES_DIGEST))
+                && short_name.equals(user.getFirstAttribute("short_name"))
+                && projects_json.equals(ProjectsAttributeCodec.decode(user.getFirstAttribute("projects")))) {
+            attributeWritesSkipped.incrementAndGet();
+            return false;
+        }
+
+        if (!short_name.equals(user.getFirstAttribute("short_name"))) {
+            user.setSingleAttribute("short_name", short_name);
+        }
+
+        String projects_value = projectsAttributeValue(projects_json,
+                compactProjects ? PROJECTS_ENCODING_COMPACT : PROJECTS_ENCODING_JSON);
+
+        if (!projects_value.equals(user.getFirstAttribute("projects"))) {
+            user.setSingleAttribute("projects", projects_value);
+        }
+
+        user.setSingleAttribute(ATTRIBUTES_DIGEST, digest);
+        attributeWritesPerformed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes the cached short name and projects from the user, skipping the write
+     * entirely if they have already been removed.
+     */
+    protected static boolean clearCachedAttributes(UserModel user) {
+        boolean changed = false;
+
+        for (String key : new String[] {"short_name", "projects", ATTRIBUTES_DIGEST}) {
+            if (user.getFirstAttribute(key) != null) {
+                user.removeAttribute(key);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            attributeWritesPerformed.incrementAndGet();
+        } else {
+            attributeWritesSkipped.incrementAndGet();
+        }
+
+        return changed;
+    }
+
+    /**
+     * Adds the claims from the short name and projects cached on the user.
+     *
+     * @return the size in bytes of the claims that were added
+     */
+    private static int addCachedClaims(IDToken token, UserModel user, ProtocolMapperModel mappingModel) {
+        String cachedShortName = user.getFirstAttribute("short_name");
+        String cachedProjects = ProjectsAttributeCodec.decode(user.getFirstAttribute("projects"));
+
+        int claim_size = 0;
+
+        if (cachedShortName != null) {
+            token.getOtherClaims().put("short_name", cachedShortName);
+            claim_size += cachedShortName.length();
+        }
+        if (cachedProjects != null && isDigestMode(mappingModel)) {
+            // no need to parse the cached projects just to digest them
+            claim_size += addProjectsClaim(token, null, cachedProjects, mappingModel);
+        } else if (cachedProjects != null) {
+            try {
+                HashMap<String, ProjectInfo> projectsObj = JsonSerialization.readValue(cachedProjects,
+                        new TypeReference<HashMap<String, ProjectInfo>>() {});
+                claim_size += addProjectsClaim(token, projectsObj, cachedProjects, mappingModel);
+            } catch (Exception e) {
+                logger.warn("Error parsing cached projects (invalid JSON): " + e.getMessage());
+                logger.warn("Cached projects value: " + cachedProjects);
+            }
+        }
+
+        return claim_size;
+    }
+
+    /**
+     * Returns whether the Isambard authenticator fetched this user's status from Waldur
+     * during this login, less than "waldur.status.max_age" seconds ago, and the
+     * attributes it cached on the user are still the ones it fetched.
+     */
+    private static boolean hasRecentLoginStatus(UserSessionModel userSession, UserModel user,
+                                                ProtocolMapperModel mappingModel) {
+        String max_age = mappingModel.getConfig().get("waldur.status.max_age");
+        String digest = userSession.getNote(STATUS_DIGEST_NOTE);
+        String time = userSession.getNote(STATUS_TIME_NOTE);
+
+        if (digest == null || time == null || !digest.equals(user.getFirstAttribute(ATTRIBUTES_DIGEST))) {
+            return false;
+        }
+
+        try {
+            long max_age_millis = 1000L * Long.parseLong(max_age == null ? DEFAULT_STATUS_MAX_AGE : max_age.trim());
+            long age_millis = System.currentTimeMillis() - Long.parseLong(time);
+
+            return age_millis >= 0 && age_millis < max_age_millis;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid waldur.status.max_age or login status time: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Whether the status is the result of a failed call, rather than a response from Waldur */
+    private static boolean isFailure(AuthorisationStatus access) {
+        return access.status == null || access.status.isEmpty();
+    }
+
+    private static AuthorisationStatus decodeStatus(String status_json) {
+        try {
+            return JsonSerialization.readValue(status_json, AuthorisationStatus.class);
+        } catch (Exception e) {
+            logger.warn("Error decoding stored Waldur status: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the scope of the statuses fetched for the passed realm from the passed
+     * Waldur endpoint. Stored and cached statuses are kept per scope, so that mappers
+     * for other realms or Waldur instances never use them.
+     */
+    static String statusScope(RealmModel realm, String waldur_api_url) {
+        return realm.getId() + " " + waldur_api_url;
+    }
+
+    private static void storeStatus(WaldurStatusStore store, String scope, String email, AuthorisationStatus access) {
+        try {
+            if (!store.put(scope, email, JsonSerialization.writeValueAsString(access), System.currentTimeMillis())) {
+                logger.debug("Waldur status for " + email + " is too large for the status store");
+            }
+        } catch (Exception e) {
+            logger.warn("Error storing Waldur status: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts refreshing the statuses of the most recently active users in the store
+     * for the passed scope, in the background and at most "status-store-warm-rate" a
+     * second. This happens once per scope, on the first token for it after startup,
+     * as that is when the Waldur API and key of the mapper for that realm and
+     * endpoint become known.
+     */
+    private void startWarming(KeycloakSession keycloakSession, String realm, String scope, String waldur_api_url,
+                              String waldur_api_key) {
+        if (!statusStoreWarmed.add(scope)) {
+            return;
+        }
+
+        WaldurStatusStore store = statusStore;
+        KeycloakSessionFactory factory = keycloakSession.getKeycloakSessionFactory();
+
+        WaldurExecutor.execute(() -> {
+            int warmed = 0;
+
+            for (String email : store.mostRecent(scope, statusStoreWarmCount)) {
+                WaldurStatusStore.Entry stored = store.get(scope, email);
+
+                if (stored != null && System.currentTimeMillis() - stored.fetched_at < statusStoreTtlMillis) {
+                    continue;
+                }
+
+                try {
+                    AuthorisationStatus access = KeycloakModelUtils.runJobInTransactionWithResult(factory,
+                            session -> fetchStatus(session, realm, email, waldur_api_url, waldur_api_key));
+
+                    if (access != null && !isFailure(access)) {
+                        storeStatus(store, scope, email, access);
+                        warmed += 1;
+                    }
+
+                    Thread.sleep(1000L / statusStoreWarmRate);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    logger.warn("Error warming Waldur status store: " + e.getMessage());
+                }
+            }
+
+            logger.info("Warmed " + warmed + " statuses for " + waldur_api_url + " in realm " + realm
+                    + " in the Waldur status store");
+        });
+    }
+
+    /**
+     * Returns the status in the passed store entry, for use when Waldur cannot give
+     * a fresh one, or null if there is no entry or it was fetched more than
+     * "status-store-max-stale" seconds ago, so may well no longer be true
+     */
+    private static AuthorisationStatus staleStatus(WaldurStatusStore.Entry stored) {
+        if (stored == null || System.currentTimeMillis() - stored.fetched_at >= statusStoreMaxStaleMillis) {
+            return null;
+        }
+
+        return decodeStatus(stored.status_json);
+    }
+
+    /**
+     * Applies the rejection policy of the Waldur bulkhead to a call that it rejected.
+     * Fail fast fails the token request with a temporarily_unavailable OAuth error.
+     * This is a 400, like the other token endpoint errors, rather than a 5xx, for
+     * which Keycloak would log a stack trace on every rejected request. Degrade
+     * issues the token without the Isambard claims. Fallback uses the last status in
+     * the status store if there is one that is not too stale, and otherwise the
+     * claims cached on the user.
+     *
+     * @return the status to carry on with, or null if the token has been dealt with
+     */
+    private static AuthorisationStatus rejectedStatus(IDToken token, UserModel user, ProtocolMapperModel mappingModel,
+                                                      String client_id, WaldurStatusStore.Entry stored) {
+        String policy = waldurBulkhead.getRejectionPolicy();
+
+        if (WaldurBulkhead.REJECT_FAIL_FAST.equals(policy)) {
+            logger.warn("[TOKEN MAPPER] Waldur is busy, so failing the token request for " + user.getEmail());
+            throw new ErrorResponseException(OAuthErrorException.TEMPORARILY_UNAVAILABLE,
+                    "Too many requests are waiting for Waldur, please try again shortly",
+                    Response.Status.BAD_REQUEST);
+        }
+
+        if (WaldurBulkhead.REJECT_DEGRADE.equals(policy)) {
+            logger.warn("[TOKEN MAPPER] Waldur is busy, so not adding claims for " + user.getEmail());
+            IsambardMapperMetrics.fallback(client_id, "bulkhead_degraded");
+            return null;
+        }
+
+        AuthorisationStatus last = staleStatus(stored);
+
+        if (last != null) {
+            IsambardMapperMetrics.statusStore(client_id, "stale");
+            return last;
+        }
+
+        IsambardMapperMetrics.fallback(client_id, "bulkhead");
+        IsambardMapperMetrics.claimSize(client_id, addCachedClaims(token, user, mappingModel));
+        return null;
+    }
+
+    /**
+     * Brings the rows for the user in the ISAMBARD_PROJECT and ISAMBARD_PROJECT_RESOURCE
+     * tables into line with their cached attributes, writing only the rows that differ.
+     * Pass null projects to remove all of the user's rows.
+     *
+     * The rows are written in their own transaction, which is committed before this
+     * returns, so that a failed write, e.g. two first tokens for the same user racing
+     * to insert the same project, cannot roll back the token request. The digest of
+     * the synced rows is only recorded once that transaction has committed, so rows
+     * that failed to sync are tried again on the next token.
+     */
+    private static void syncProjectRows(KeycloakSession session, RealmModel realm, UserModel user,
+                                        HashMap<String, ProjectInfo> projects) {
+        String digest = projects == null ? null : user.getFirstAttribute(ATTRIBUTES_DIGEST);
+
+        if (Objects.equals(digest, user.getFirstAttribute(PROJECT_ROWS_DIGEST))
+                || !IsambardProjectStore.isAvailable(session)) {
+            return;
+        }
+
+        Map<String, IsambardProjectStore.Project> rows = new LinkedHashMap<>();
+
+        if (projects != null) {
+            for (Map.Entry<String, ProjectInfo> entry : projects.entrySet()) {
+                Map<String, String> resources = new LinkedHashMap<>();
+
+                for (ResourceInfo resource : entry.getValue().resources) {
+                    resources.put(resource.name, resource.username);
+                }
+
+                rows.put(entry.getKey(), new IsambardProjectStore.Project(entry.getValue().name, resources));
+            }
+        }
+
+        try {
+            // the store only uses the ids of the realm and user, so these can be
+            // passed to the job's session, even for a user not yet committed
+            int written = KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(),
+                    job -> {
+                        if (projects == null) {
+                            IsambardProjectStore.clear(job, realm, user);
+                            return 0;
+                        }
+
+                        return IsambardProjectStore.update(job, realm, user, rows);
+                    });
+
+            if (digest == null) {
+                user.removeAttribute(PROJECT_ROWS_DIGEST);
+            } else {
+                user.setSingleAttribute(PROJECT_ROWS_DIGEST, digest);
+            }
+
+            logger.debug("Wrote " + written + " project rows for " + user.getUsername());
+        } catch (RuntimeException e) {
+            logger.warn("Error updating project rows for " + user.getUsername() + ", will retry on the next token: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Fetches the status of the email from Waldur, once the bulkhead for the endpoint
+     * and realm has admitted the call. If hedging is enabled, the call is made through
+     * the hedger, and each of the calls it makes holds its own permit until it has
+     * finished, even if the other call has already been used.
+     *
+     * @return the status, or null if the bulkhead rejected the call
+     */
+    private AuthorisationStatus fetchStatus(KeycloakSession session, String realm, String email,
+                                            String waldur_api_url, String waldur_api_key) {
+        WaldurBulkhead bulkhead = waldurBulkhead;
+        WaldurBulkhead.Permit permit = bulkhead.acquire(waldur_api_url, realm);
+
+        if (permit == null) {
+            return null;
+        }
+
+        WaldurHedger hedger = waldurHedger;
+
+        if (!hedger.isEnabled() || email == null || waldur_api_url == null || waldur_api_key == null) {
+            try {
+                return checkEmailHasAccess(session, email, waldur_api_url, waldur_api_key);
+            } finally {
+                permit.close();
+            }
+        }
+
+        return hedger.call(() -> checkEmailHasAccessAsync(session, email, waldur_api_url, waldur_api_key)
+                .whenComplete((status, error) -> permit.close()), () -> {
+            WaldurBulkhead.Permit hedge_permit = bulkhead.tryAcquire(waldur_api_url, realm);
+
+            if (hedge_permit == null) {
+                return null;
+            }
+
+            return checkEmailHasAccessAsync(session, email, waldur_api_url, waldur_api_key)
+                    .whenComplete((status, error) -> hedge_permit.close());
+        }, status -> !isFailure(status));
+    }
+
+    /**
+     * Starts fetching the status of the email from Waldur on the WaldurExecutor,
+     * returning the future of the status, which has a reason set if the call failed.
+     * The request is built before this returns, as the session can only be used on
+     * the thread that owns it, so this must be called from that thread.
+     */
+    protected CompletableFuture<AuthorisationStatus> checkEmailHasAccessAsync(KeycloakSession session,
+                                                                             String email,
+                                                                             String waldur_api_url,
+                                                                             String waldur_api_key) {
+        if (email == null || waldur_api_url == null || waldur_api_key == null) {
+            return CompletableFuture.completedFuture(new AuthorisationStatus());
+        }
+
+        SimpleHttp request;
+
+        try {
+            request = waldurRequest(session, email, waldur_api_url, waldur_api_key);
+        } catch (RuntimeException e) {
+            logger.warn("API call failed: " + e.getMessage());
+            AuthorisationStatus status = new AuthorisationStatus();
+            status.reason = "API call to Waldur failed";
+            return CompletableFuture.completedFuture(status);
+        }
+
+        return WaldurExecutor.supplyAsync(() -> readStatus(request));
+    }
+
+    /** Builds the request for the status of the email from the Waldur API */
+    private static SimpleHttp waldurRequest(KeycloakSession session, String email,
+                                            String waldur_api_url, String waldur_api_key) {
+        return SimpleHttp.doGet(waldur_api_url, session)
+                .header("Authorization", "Token " + waldur_api_key)
+                .param("email", email);
+    }
+
     protected AuthorisationStatus checkEmailHasAccess(KeycloakSession session,
                                                       String email,
                                                       String waldur_api_url,
                                                       String waldur_api_key) {
 
-        AuthorisationStatus status = new AuthorisationStatus();
-
         if (email == null || waldur_api_url == null || waldur_api_key == null) {
-            return status;
+            return new AuthorisationStatus();
         }
 
         // Call the Waldur API to check authorisation and retrieve project information
         try {
-            SimpleHttp.Response response = SimpleHttp.doGet(waldur_api_url, session)
-                    .header("Authorization", "Token " + waldur_api_key)
-                    .param("email", email)
-                    .asResponse();
+            return readStatus(waldurRequest(session, email, waldur_api_url, waldur_api_key));
+        } catch (Exception e) {
+            logger.warn("API call failed: " + e.getMessage());
+            AuthorisationStatus status = new AuthorisationStatus();
+            status.reason = "API call to Waldur failed";
+            return status;
+        }
+    }
+
+    /**
+     * Sends a request built by waldurRequest and decodes the status in the response.
+     * The returned status has a reason set if the call failed.
+     */
+    private static AuthorisationStatus readStatus(SimpleHttp request) {
+        AuthorisationStatus status = new AuthorisationStatus();
+
+        try {
+            SimpleHttp.Response response = request.asResponse();
 
             if (response.getStatus() != 200) {
                 logger.warn("API call failed:  " + response.getStatus());
@@ -154,7 +948,31 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
     @Override
     protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession, 
                           KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
-        
+
+        String client_id = null;
+
+        if (clientSessionCtx != null && clientSessionCtx.getClientSession() != null) {
+            client_id = clientSessionCtx.getClientSession().getClient().getClientId();
+        }
+
+        // this is a no-op unless Keycloak is started with tracing enabled
+        TracingProvider tracing = TracingProviderUtil.getTracingProvider(keycloakSession);
+        tracing.startSpan(IsambardProtocolMapper.class, "setClaim")
+                .setAttribute("isambard.client_id", client_id == null ? "unknown" : client_id);
+
+        try {
+            mapClaims(token, mappingModel, userSession, keycloakSession, client_id, tracing);
+        } catch (RuntimeException e) {
+            tracing.error(e);
+            throw e;
+        } finally {
+            tracing.endSpan();
+        }
+    }
+
+    private void mapClaims(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
+                           KeycloakSession keycloakSession, String client_id, TracingProvider tracing) {
+
         UserModel user = userSession.getUser();
         String email = user.getEmail();
 
@@ -170,26 +988,97 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
         if (waldur_api_url == null || waldur_api_key == null) {
             logger.warn("Waldur API URL or Key not configured in mapper.");
             // Fall back to cached user attributes if API is not configured
-            String cachedShortName = user.getFirstAttribute("short_name");
-            String cachedProjects = user.getFirstAttribute("projects");
-            
-            if (cachedShortName != null) {
-                token.getOtherClaims().put("short_name", cachedShortName);
+            IsambardMapperMetrics.fallback(client_id, "not_configured");
+            IsambardMapperMetrics.claimSize(client_id, addCachedClaims(token, user, mappingModel));
+            return;
+        }
+
+        if (hasRecentLoginStatus(userSession, user, mappingModel)) {
+            // the authenticator has only just fetched this status from Waldur and
+            // cached it on the user, so build the claims from that instead
+            tracing.getCurrentSpan().setAttribute("isambard.login_status", true);
+            IsambardMapperMetrics.loginStatusReused(client_id);
+            IsambardMapperMetrics.claimSize(client_id, addCachedClaims(token, user, mappingModel));
+            return;
+        }
+
+        String realm = userSession.getRealm().getName();
+        String scope = statusScope(userSession.getRealm(), waldur_api_url);
+        CachedWaldurStatus.Cache cache = statusCache;
+        WaldurStatusStore store = statusStore;
+        WaldurStatusStore.Entry stored = null;
+        AuthorisationStatus access = null;
+
+        if (cache != null) {
+            CachedWaldurStatus cached = cache.get(scope, email, System.currentTimeMillis());
+            IsambardMapperMetrics.statusCache(client_id, cached != null);
+
+            if (cached != null) {
+                access = cached.toStatus();
             }
-            if (cachedProjects != null) {
-                try {
-                    Object projectsObj = JsonSerialization.readValue(cachedProjects, Object.class);
-                    token.getOtherClaims().put("projects", projectsObj);
-                } catch (Exception e) {
-                    logger.warn("Error parsing cached projects (invalid JSON): " + e.getMessage());
-                    logger.warn("Cached projects value: " + cachedProjects);
+        }
+
+        if (access == null && store != null) {
+            startWarming(keycloakSession, realm, scope, waldur_api_url, waldur_api_key);
+            stored = store.get(scope, email);
+
+            if (stored != null && System.currentTimeMillis() - stored.fetched_at < statusStoreTtlMillis) {
+                // recently fetched, possibly by this node before it restarted
+                access = decodeStatus(stored.status_json);
+
+                if (access != null) {
+                    IsambardMapperMetrics.statusStore(client_id, "fresh");
+
+                    if (cache != null) {
+                        cache.put(scope, email, CachedWaldurStatus.of(access, stored.fetched_at));
+                    }
+                }
+            }
+        }
+
+        if (access == null) {
+            // Fetch fresh authorisation status from Waldur API
+            tracing.startSpan(IsambardProtocolMapper.class, "waldur");
+            long start = System.nanoTime();
+
+            try {
+                access = fetchStatus(keycloakSession, realm, email, waldur_api_url, waldur_api_key);
+                tracing.getCurrentSpan().setAttribute("isambard.status", access == null ? "rejected" : access.status);
+            } finally {
+                tracing.endSpan();
+            }
+
+            if (access == null) {
+                // too many calls to Waldur are already in progress
+                access = rejectedStatus(token, user, mappingModel, client_id, stored);
+
+                if (access == null) {
+                    return;
+                }
+            } else {
+                IsambardMapperMetrics.waldurCall(client_id, System.nanoTime() - start,
+                        access.reason == null || access.reason.isEmpty());
+
+                if (cache != null && !isFailure(access)) {
+                    cache.put(scope, email, CachedWaldurStatus.of(access, System.currentTimeMillis()));
+                }
+
+                if (store != null && !isFailure(access)) {
+                    storeStatus(store, scope, email, access);
+                } else if (store != null && stored != null) {
+                    // Waldur is unavailable, so use the last status it gave us, unless
+                    // that is too old, when the cached attributes are used as before
+                    AuthorisationStatus last = staleStatus(stored);
+
+                    if (last != null) {
+                        access = last;
+                        IsambardMapperMetrics.statusStore(client_id, "stale");
+                    }
                 }
             }
-            return;
         }
 
-        // Fetch fresh authorisation status from Waldur API
-        AuthorisationStatus access = checkEmailHasAccess(keycloakSession, email, waldur_api_url, waldur_api_key);
+        IsambardMapperMetrics.outcome(client_id, access.status);
 
         if (access.status.equals("active")) {
             // User is active - process their short name and projects
@@ -205,8 +1094,7 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
                 logger.warn("Error serialising projects to JSON: " + e.getMessage());
             }
 
-            if (short_name == null || short_name == "" || short_name.length() == 0
-                    || short_name.toLowerCase().equals("none")) {
+            if (ShortNames.isUnset(short_name)) {
                 logger.info("[TOKEN MAPPER] " + email
                         + " is authorised, but they have not set their short name.");
                 short_name = "";
@@ -235,35 +1123,21 @@ public class IsambardProtocolMapper extends AbstractOIDCProtocolMapper
 
             // Update user attributes if they have changed
             // These are cached on the user object for fallback when API is unavailable
-            Map<String, List<String>> userAttributes = user.getAttributes();
-
-            if (userAttributes.containsKey("short_name")) {
-                if (! userAttributes.get("short_name").get(0).equals(short_name)) {
-                    user.setSingleAttribute("short_name", short_name);
-                }
-            } else {
-                user.setSingleAttribute("short_name", short_name);
-            }
-
-            if (userAttributes.containsKey("projects")) {
-                if (!userAttributes.get("projects").get(0).equals(projects_json)) {
-                    user.setSingleAttribute("projects", projects_json);
-                }
-            } else {
-                user.setSingleAttribute("projects", projects_json);
-            }
+            IsambardMapperMetrics.attributeWrite(client_id, updateCachedAttributes(user, short_name, projects_json));
+            syncProjectRows(keycloakSession, userSession.getRealm(), user, projects);
 
             // Add claims to the token
             token.getOtherClaims().put("short_name", short_name);
-            token.getOtherClaims().put("projects", projects);
+            int claim_size = short_name.length() + addProjectsClaim(token, projects, projects_json, mappingModel);
+            IsambardMapperMetrics.claimSize(client_id, claim_size);
             
         } else {
             // User is not active - use cached attributes if available
             logger.warn("[TOKEN MAPPER] " + email + " is not active (status:  " + access.status + ")");
             
             // clear the custom attributes for this user
-            user.removeAttribute("short_name");
-            user.removeAttribute("projects");
+            IsambardMapperMetrics.attributeWrite(client_id, clearCachedAttributes(user));
+            syncProjectRows(keycloakSession, userSession.getRealm(), user, null);
         }
     }
 }
\ No newline at end of file
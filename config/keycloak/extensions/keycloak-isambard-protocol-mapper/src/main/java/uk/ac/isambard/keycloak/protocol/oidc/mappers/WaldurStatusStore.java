@@ -0,0 +1,416 @@
+package uk.ac.isambard.keycloak.protocol.oidc.mappers;
+
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Off-heap store of the statuses fetched from Waldur, held in a memory-mapped
+ * file so that it survives a restart of Keycloak. A node that has just started
+ * can then build tokens for recently active users without waiting for Waldur.
+ *
+ * Statuses are kept per scope, which names the realm and Waldur endpoint that a
+ * status came from, so that mappers for different realms or Waldur instances
+ * never see each other's statuses. The file is a fixed-size hash table of slots,
+ * looked up by scope and email with linear probing. Each slot holds one binary
+ * record:
+ *
+ * <pre>
+ *   int   magic (0 if the slot is empty)
+ *   long  time the status was fetched (epoch milliseconds)
+ *   short length of the scope
+ *   short length of the email
+ *   short length of the status
+ *   short unused
+ *   byte[] scope (UTF-8)
+ *   byte[] email (UTF-8)
+ *   byte[] status (deflated JSON)
+ * </pre>
+ *
+ * Statuses too large for a slot are not stored. When every probed slot is full,
+ * the oldest record is replaced. Changes are written straight to the mapped file,
+ * and are forced to disk every checkpoint interval. Records whose lengths do not
+ * fit their slot, e.g. ones torn by a crash, are treated as missing.
+ *
+ * The file holds the emails and project memberships of users, so it is created
+ * readable by the Keycloak user only.
+ */
+final class WaldurStatusStore {
+
+    private static final Logger logger = Logger.getLogger(WaldurStatusStore.class);
+
+    private static final int FILE_MAGIC = 0x49535753; // "ISWS"
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_MAGIC = 0x52454332; // "REC2"
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    /** The number of slots probed for a key before the oldest is replaced */
+    private static final int MAX_PROBES = 8;
+
+    /** A status read from the store, and when it was fetched from Waldur */
+    static final class Entry {
+        final String scope;
+        final String email;
+        final long fetched_at;
+        final String status_json;
+
+        private Entry(String scope, String email, long fetched_at, String status_json) {
+            this.scope = scope;
+            this.email = email;
+            this.fetched_at = fetched_at;
+            this.status_json = status_json;
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int slot_size;
+    private final ScheduledExecutorService checkpointer;
+
+    private WaldurStatusStore(MappedByteBuffer buffer, int slots, int slot_size, long checkpoint_seconds) {
+        this.buffer = buffer;
+        this.slots = slots;
+        this.slot_size = slot_size;
+
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "isambard-status-store-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpoint_seconds, checkpoint_seconds,
+                TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::checkpoint, "isambard-status-store-shutdown"));
+    }
+
+    /**
+     * Opens the store in the passed file, creating it readable by its owner only if
+     * needed. An existing file that was created with a different format, number or
+     * size of slots is cleared.
+     */
+    static WaldurStatusStore open(Path path, int slots, int slot_size, long checkpoint_seconds) throws IOException {
+        if (slots <= 0 || slot_size <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid status store size: " + slots + " slots of " + slot_size
+                    + " bytes");
+        }
+
+        long size = HEADER_SIZE + (long) slots * slot_size;
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Status store of " + size + " bytes is too large");
+        }
+
+        createOwnerOnly(path);
+
+        MappedByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        if (buffer.getInt(0) != FILE_MAGIC || buffer.getInt(4) != FILE_VERSION
+                || buffer.getInt(8) != slots || buffer.getInt(12) != slot_size) {
+            logger.info("Initialising Waldur status store " + path);
+
+            for (int slot = 0; slot < slots; slot++) {
+                buffer.putInt(offset(slot, slot_size), 0);
+            }
+
+            buffer.putInt(0, FILE_MAGIC);
+            buffer.putInt(4, FILE_VERSION);
+            buffer.putInt(8, slots);
+            buffer.putInt(12, slot_size);
+            buffer.force();
+        }
+
+        return new WaldurStatusStore(buffer, slots, slot_size, checkpoint_seconds);
+    }
+
+    /**
+     * Creates the file with owner-only permissions, or restricts an existing one,
+     * as it holds personal data. This is skipped on file systems without POSIX
+     * permissions.
+     */
+    private static void createOwnerOnly(Path path) throws IOException {
+        Set<PosixFilePermission> owner_only = PosixFilePermissions.fromString("rw-------");
+
+        try {
+            if (Files.exists(path)) {
+                Files.setPosixFilePermissions(path, owner_only);
+            } else {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(owner_only));
+            }
+        } catch (UnsupportedOperationException e) {
+            logger.warn("Cannot restrict the permissions of Waldur status store " + path
+                    + ", so make sure only Keycloak can read it");
+        }
+    }
+
+    private static int offset(int slot, int slot_size) {
+        return HEADER_SIZE + slot * slot_size;
+    }
+
+    private int offset(int slot) {
+        return offset(slot, slot_size);
+    }
+
+    private int home(String scope, String email) {
+        return Math.floorMod(31 * scope.hashCode() + email.hashCode(), slots);
+    }
+
+    /**
+     * Whether a record with the passed lengths fits in a slot. The lengths are read
+     * from the file, which may hold a torn or corrupt record after a crash.
+     */
+    private boolean fits(int scope_length, int email_length, int status_length) {
+        return scope_length >= 0 && email_length >= 0 && status_length >= 0
+                && RECORD_HEADER_SIZE + scope_length + email_length + status_length <= slot_size;
+    }
+
+    /** Whether the record at the offset is in the passed scope */
+    private boolean inScope(int offset, byte[] scope) {
+        if (buffer.getInt(offset) != RECORD_MAGIC || buffer.getShort(offset + 12) != scope.length
+                || !fits(scope.length, 0, 0)) {
+            return false;
+        }
+
+        byte[] stored = new byte[scope.length];
+        buffer.get(offset + RECORD_HEADER_SIZE, stored);
+        return Arrays.equals(stored, scope);
+    }
+
+    private boolean holds(int offset, byte[] scope, byte[] email) {
+        if (!inScope(offset, scope) || buffer.getShort(offset + 14) != email.length
+                || !fits(scope.length, email.length, 0)) {
+            return false;
+        }
+
+        byte[] stored = new byte[email.length];
+        buffer.get(offset + RECORD_HEADER_SIZE + scope.length, stored);
+        return Arrays.equals(stored, email);
+    }
+
+    /** Returns the stored status for the passed email in the passed scope, or null if there is none */
+    synchronized Entry get(String scope, String email) {
+        byte[] scope_bytes = scope.getBytes(StandardCharsets.UTF_8);
+        byte[] email_bytes = email.getBytes(StandardCharsets.UTF_8);
+        int home = home(scope, email);
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int offset = offset((home + probe) % slots);
+
+            if (buffer.getInt(offset) == 0) {
+                // records are never removed, so the key is not further along
+                return null;
+            }
+
+            if (holds(offset, scope_bytes, email_bytes)) {
+                return read(offset);
+            }
+        }
+
+        return null;
+    }
+
+    private Entry read(int offset) {
+        long fetched_at = buffer.getLong(offset + 4);
+        int scope_length = buffer.getShort(offset + 12);
+        int email_length = buffer.getShort(offset + 14);
+        int status_length = buffer.getShort(offset + 16) & 0xFFFF;
+
+        if (!fits(scope_length, email_length, status_length)) {
+            logger.warn("Ignoring corrupt Waldur status store record with lengths " + scope_length + ", "
+                    + email_length + " and " + status_length);
+            return null;
+        }
+
+        byte[] scope = new byte[scope_length];
+        byte[] email = new byte[email_length];
+        byte[] status = new byte[status_length];
+        buffer.get(offset + RECORD_HEADER_SIZE, scope);
+        buffer.get(offset + RECORD_HEADER_SIZE + scope_length, email);
+        buffer.get(offset + RECORD_HEADER_SIZE + scope_length + email_length, status);
+
+        try {
+            return new Entry(new String(scope, StandardCharsets.UTF_8), new String(email, StandardCharsets.UTF_8),
+                    fetched_at, inflate(status));
+        } catch (DataFormatException e) {
+            logger.warn("Ignoring corrupt Waldur status store record: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the status fetched for the passed email in the passed scope, replacing
+     * any previous status for them in that scope.
+     *
+     * @return whether the status was small enough to be stored
+     */
+    synchronized boolean put(String scope, String email, String status_json, long fetched_at) {
+        byte[] scope_bytes = scope.getBytes(StandardCharsets.UTF_8);
+        byte[] email_bytes = email.getBytes(StandardCharsets.UTF_8);
+        byte[] status = deflate(status_json);
+
+        if (scope_bytes.length > Short.MAX_VALUE || email_bytes.length > Short.MAX_VALUE || status.length > 0xFFFF
+                || RECORD_HEADER_SIZE + scope_bytes.length + email_bytes.length + status.length > slot_size) {
+            return false;
+        }
+
+        int home = home(scope, email);
+        int target = -1;
+        long oldest = Long.MAX_VALUE;
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (home + probe) % slots;
+            int offset = offset(slot);
+
+            if (buffer.getInt(offset) == 0 || holds(offset, scope_bytes, email_bytes)) {
+                target = slot;
+                break;
+            }
+
+            long fetched = buffer.getLong(offset + 4);
+
+            if (fetched < oldest) {
+                oldest = fetched;
+                target = slot;
+            }
+        }
+
+        int offset = offset(target);
+
+        // clear the magic first, so a torn write is never read back as a record
+        buffer.putInt(offset, 0);
+        buffer.putLong(offset + 4, fetched_at);
+        buffer.putShort(offset + 12, (short) scope_bytes.length);
+        buffer.putShort(offset + 14, (short) email_bytes.length);
+        buffer.putShort(offset + 16, (short) status.length);
+        buffer.putShort(offset + 18, (short) 0);
+        buffer.put(offset + RECORD_HEADER_SIZE, scope_bytes);
+        buffer.put(offset + RECORD_HEADER_SIZE + scope_bytes.length, email_bytes);
+        buffer.put(offset + RECORD_HEADER_SIZE + scope_bytes.length + email_bytes.length, status);
+        buffer.putInt(offset, RECORD_MAGIC);
+
+        return true;
+    }
+
+    /**
+     * Returns the emails of up to max of the most recently fetched statuses in the
+     * passed scope, most recent first
+     */
+    synchronized List<String> mostRecent(String scope, int max) {
+        byte[] scope_bytes = scope.getBytes(StandardCharsets.UTF_8);
+        List<long[]> records = new ArrayList<>();
+
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = offset(slot);
+
+            if (inScope(offset, scope_bytes)) {
+                records.add(new long[] {buffer.getLong(offset + 4), slot});
+            }
+        }
+
+        records.sort(Comparator.comparingLong((long[] r) -> r[0]).reversed());
+
+        List<String> emails = new ArrayList<>();
+
+        for (long[] record : records) {
+            if (emails.size() >= max) {
+                break;
+            }
+
+            int offset = offset((int) record[1]);
+            int email_length = buffer.getShort(offset + 14);
+
+            if (!fits(scope_bytes.length, email_length, buffer.getShort(offset + 16) & 0xFFFF)) {
+                // torn or corrupt, so skip it
+                continue;
+            }
+
+            byte[] email = new byte[email_length];
+            buffer.get(offset + RECORD_HEADER_SIZE + scope_bytes.length, email);
+            emails.add(new String(email, StandardCharsets.UTF_8));
+        }
+
+        return emails;
+    }
+
+    /** Forces all changes to the mapped file out to disk */
+    synchronized void checkpoint() {
+        try {
+            buffer.force();
+        } catch (Exception e) {
+            logger.warn("Could not checkpoint Waldur status store: " + e.getMessage());
+        }
+    }
+
+    private static byte[] deflate(String value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            deflater.setInput(value.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] value) throws DataFormatException {
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(value);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated status");
+                }
+
+                output.write(chunk, 0, length);
+            }
+
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package uk.ac.isambard.keycloak.services.resource;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import uk.ac.isambard.keycloak.common.ProjectsAttributeCodec;
+import uk.ac.isambard.keycloak.protocol.oidc.mappers.IsambardProtocolMapper;
+
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import org.jboss.logging.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the full projects document for the user of the bearer token, as an
+ * alternative to embedding the projects in every token.
+ *
+ * Tokens issued by the Isambard protocol mapper in "digest" mode carry a
+ * projects_digest claim. This is the same value as the ETag returned here, so clients
+ * only need to call this endpoint when the digest in a new token differs from the
+ * one they have cached, and can send If-None-Match to get a 304 otherwise.
+ *
+ * The document is not filtered by any mapper's resource patterns, so it holds every
+ * project of the user. The mapper therefore refuses digest mode for mappers with
+ * resource patterns.
+ *
+ * Available at /realms/{realm}/isambard-projects
+ *
+ * This also has an admin job at /realms/{realm}/isambard-projects/migrate that
+ * rewrites the projects attribute of every user in a given encoding. Callers need
+ * a bearer token for a user in the realm with the realm-management manage-users role.
+ */
+public class IsambardProjectsResourceProvider implements RealmResourceProvider {
+
+    private static final Logger logger = Logger.getLogger(IsambardProjectsResourceProvider.class);
+
+    private final KeycloakSession session;
+
+    public IsambardProjectsResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getProjects(@HeaderParam(HttpHeaders.IF_NONE_MATCH) String if_none_match) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+
+        if (auth == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        UserModel user = auth.getUser();
+        String projects_json = ProjectsAttributeCodec.decode(user.getFirstAttribute("projects"));
+
+        if (projects_json == null) {
+            projects_json = "{}";
+        }
+
+        String digest = IsambardProtocolMapper.projectsDigest(projects_json);
+        EntityTag etag = new EntityTag(digest);
+
+        CacheControl cache_control = new CacheControl();
+        cache_control.setPrivate(true);
+        cache_control.setNoCache(true);
+
+        if (if_none_match != null) {
+            for (String tag : if_none_match.split(",")) {
+                tag = tag.trim();
+
+                // accept both strong and weak forms of the tag
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+
+                if (tag.equals("*") || tag.equals("\"" + digest + "\"")) {
+                    return Response.notModified(etag).cacheControl(cache_control).build();
+                }
+            }
+        }
+
+        logger.debug("Serving projects for " + user.getUsername() + " with digest " + digest);
+
+        return Response.ok(projects_json, MediaType.APPLICATION_JSON_TYPE)
+                .tag(etag)
+                .cacheControl(cache_control)
+                .build();
+    }
+
+    /**
+     * Returns null if the caller may use the admin endpoints, or the error response to return
+     */
+    private Response checkAdmin() {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+
+        if (auth == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+        ClientModel realm_management = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+
+        if (realm_management == null
+                || !auth.getUser().hasRole(realm_management.getRole(AdminRoles.MANAGE_USERS))) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        return null;
+    }
+
+    /**
+     * Job that rewrites the projects attribute of every user in the passed encoding,
+     * either "compact" or "json" (e.g. to roll back). Users are processed in batches,
+     * each in its own transaction, so this can safely be re-run if it is interrupted.
+     * Set projects-attribute-encoding on the mapper first, so that new writes use the
+     * same encoding.
+     */
+    @POST
+    @Path("migrate")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response migrate(@QueryParam("encoding") @DefaultValue(IsambardProtocolMapper.PROJECTS_ENCODING_COMPACT)
+                            String encoding,
+                            @QueryParam("batch") @DefaultValue("100") int batch) {
+        Response denied = checkAdmin();
+
+        if (denied != null) {
+            return denied;
+        }
+
+        if (!IsambardProtocolMapper.PROJECTS_ENCODING_COMPACT.equals(encoding)
+                && !IsambardProtocolMapper.PROJECTS_ENCODING_JSON.equals(encoding)) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("encoding must be compact or json").build();
+        }
+
+        if (batch <= 0 || batch > 1000) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("batch must be between 1 and 1000").build();
+        }
+
+        String realm_id = session.getContext().getRealm().getId();
+
+        long users = 0;
+        long rewritten = 0;
+        long characters_before = 0;
+        long characters_after = 0;
+        String after = null;
+
+        while (true) {
+            final String batch_after = after;
+
+            long[] result = new long[4];
+            String last = KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(), s -> {
+                RealmModel realm = s.realms().getRealm(realm_id);
+                s.getContext().setRealm(realm);
+
+                List<String> ids = s.getProvider(JpaConnectionProvider.class).getEntityManager()
+                        .createQuery("select distinct a.user.id from UserAttributeEntity a"
+                                + " where a.user.realmId = :realmId and a.name = 'projects' and a.user.id > :after"
+                                + " order by a.user.id", String.class)
+                        .setParameter("realmId", realm_id)
+                        .setParameter("after", batch_after == null ? "" : batch_after)
+                        .setMaxResults(batch)
+                        .getResultList();
+
+                for (String id : ids) {
+                    UserModel user = s.users().getUserById(realm, id);
+
+                    if (user == null) {
+                        continue;
+                    }
+
+                    String value = user.getFirstAttribute("projects");
+                    String projects_json = ProjectsAttributeCodec.decode(value);
+
+                    result[0] += 1;
+
+                    if (value == null || projects_json == null) {
+                        continue;
+                    }
+
+                    String migrated = IsambardProtocolMapper.projectsAttributeValue(projects_json, encoding);
+                    result[2] += value.length();
+                    result[3] += migrated.length();
+
+                    if (!migrated.equals(value)) {
+                        user.setSingleAttribute("projects", migrated);
+                        result[1] += 1;
+                    }
+                }
+
+                return ids.isEmpty() ? null : ids.get(ids.size() - 1);
+            });
+
+            users += result[0];
+            rewritten += result[1];
+            characters_before += result[2];
+            characters_after += result[3];
+
+            if (last == null) {
+                break;
+            }
+
+            after = last;
+        }
+
+        logger.info("Migrated the projects attribute of " + rewritten + " of " + users + " users to " + encoding
+                + " (" + characters_before + " to " + characters_after + " characters)");
+
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("users", users);
+        summary.put("rewritten", rewritten);
+        summary.put("characters_before", characters_before);
+        summary.put("characters_after", characters_after);
+
+        return Response.ok(summary).build();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,269 @@
+package uk.ac.isambard.keycloak.protocol.oidc.mappers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class WaldurStatusStoreTest {
+
+    private static final String SCOPE = "realm-a https://waldur.example.org/api";
+    private static final String OTHER_SCOPE = "realm-b https://waldur.example.org/api";
+    private static final String STATUS = "{\"status\":\"active\",\"short_name\":\"alice\",\"projects\":{}}";
+
+    // the layout of the first slot, see the WaldurStatusStore class comment
+    private static final int FIRST_RECORD = 16;
+    private static final int SCOPE_LENGTH = FIRST_RECORD + 12;
+    private static final int STATUS_LENGTH = FIRST_RECORD + 16;
+    private static final int RECORD_DATA = FIRST_RECORD + 20;
+
+    @TempDir
+    Path dir;
+
+    private WaldurStatusStore open(Path file, int slots, int slot_size) throws IOException {
+        return WaldurStatusStore.open(file, slots, slot_size, 3600L);
+    }
+
+    /** Writes the passed bytes into the file at the passed position, as a crash or bad disk might */
+    private static void corrupt(Path file, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static byte[] shortBytes(int value) {
+        return ByteBuffer.allocate(2).putShort((short) value).array();
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        WaldurStatusStore store = open(dir.resolve("status.dat"), 64, 512);
+
+        assertTrue(store.put(SCOPE, "alice@example.org", STATUS, 1234L));
+
+        WaldurStatusStore.Entry entry = store.get(SCOPE, "alice@example.org");
+        assertNotNull(entry);
+        assertEquals(SCOPE, entry.scope);
+        assertEquals("alice@example.org", entry.email);
+        assertEquals(1234L, entry.fetched_at);
+        assertEquals(STATUS, entry.status_json);
+
+        assertNull(store.get(SCOPE, "bob@example.org"));
+    }
+
+    @Test
+    void putReplacesPreviousStatus() throws IOException {
+        WaldurStatusStore store = open(dir.resolve("status.dat"), 64, 512);
+
+        store.put(SCOPE, "alice@example.org", STATUS, 1L);
+        store.put(SCOPE, "alice@example.org", "{\"status\":\"invited\"}", 2L);
+
+        WaldurStatusStore.Entry entry = store.get(SCOPE, "alice@example.org");
+        assertEquals("{\"status\":\"invited\"}", entry.status_json);
+        assertEquals(2L, entry.fetched_at);
+        assertEquals(List.of("alice@example.org"), store.mostRecent(SCOPE, 10));
+    }
+
+    @Test
+    void scopesAreKeptApart() throws IOException {
+        WaldurStatusStore store = open(dir.resolve("status.dat"), 64, 512);
+
+        store.put(SCOPE, "alice@example.org", STATUS, 1L);
+
+        assertNull(store.get(OTHER_SCOPE, "alice@example.org"));
+        assertEquals(List.of(), store.mostRecent(OTHER_SCOPE, 10));
+
+        store.put(OTHER_SCOPE, "alice@example.org", "{\"status\":\"invited\"}", 2L);
+
+        assertEquals(STATUS, store.get(SCOPE, "alice@example.org").status_json);
+        assertEquals("{\"status\":\"invited\"}", store.get(OTHER_SCOPE, "alice@example.org").status_json);
+    }
+
+    @Test
+    void fullProbeChainReplacesTheOldest() throws IOException {
+        // with 8 slots every key probes every slot, so the ninth key finds them all full
+        WaldurStatusStore store = open(dir.resolve("status.dat"), 8, 256);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(store.put(SCOPE, "user" + i + "@example.org", STATUS, 100L + i));
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(store.get(SCOPE, "user" + i + "@example.org"));
+        }
+
+        assertTrue(store.put(SCOPE, "late@example.org", STATUS, 200L));
+
+        assertNull(store.get(SCOPE, "user0@example.org"));
+        assertNotNull(store.get(SCOPE, "late@example.org"));
+
+        for (int i = 1; i < 8; i++) {
+            assertNotNull(store.get(SCOPE, "user" + i + "@example.org"));
+        }
+    }
+
+    @Test
+    void mostRecentIsNewestFirstAndLimited() throws IOException {
+        WaldurStatusStore store = open(dir.resolve("status.dat"), 64, 256);
+
+        store.put(SCOPE, "old@example.org", STATUS, 1L);
+        store.put(SCOPE, "new@example.org", STATUS, 3L);
+        store.put(SCOPE, "mid@example.org", STATUS, 2L);
+
+        assertEquals(List.of("new@example.org", "mid@example.org", "old@example.org"), store.mostRecent(SCOPE, 10));
+        assertEquals(List.of("new@example.org", "mid@example.org"), store.mostRecent(SCOPE, 2));
+    }
+
+    @Test
+    void oversizedStatusIsNotStored() throws IOException {
+        WaldurStatusStore store = open(dir.resolve("status.dat"), 16, 256);
+
+        // random hex does not deflate below the slot size
+        Random random = new Random(42);
+        StringBuilder large = new StringBuilder("{\"status\":\"active\",\"short_name\":\"");
+
+        for (int i = 0; i < 1000; i++) {
+            large.append(Integer.toHexString(random.nextInt()));
+        }
+
+        large.append("\"}");
+
+        assertFalse(store.put(SCOPE, "alice@example.org", large.toString(), 1L));
+        assertNull(store.get(SCOPE, "alice@example.org"));
+        assertEquals(List.of(), store.mostRecent(SCOPE, 10));
+    }
+
+    @Test
+    void recordWithBadLengthIsAMiss() throws IOException {
+        Path file = dir.resolve("status.dat");
+        open(file, 1, 256).put(SCOPE, "alice@example.org", STATUS, 1L);
+
+        // a status length that runs past the end of the slot
+        corrupt(file, STATUS_LENGTH, shortBytes(0xFFFF));
+
+        WaldurStatusStore store = open(file, 1, 256);
+        assertNull(store.get(SCOPE, "alice@example.org"));
+        assertEquals(List.of(), store.mostRecent(SCOPE, 10));
+    }
+
+    @Test
+    void recordWithNegativeLengthIsAMiss() throws IOException {
+        Path file = dir.resolve("status.dat");
+        open(file, 1, 256).put(SCOPE, "alice@example.org", STATUS, 1L);
+
+        corrupt(file, SCOPE_LENGTH, shortBytes(-5));
+
+        WaldurStatusStore store = open(file, 1, 256);
+        assertNull(store.get(SCOPE, "alice@example.org"));
+        assertEquals(List.of(), store.mostRecent(SCOPE, 10));
+    }
+
+    @Test
+    void truncatedStatusIsAMiss() throws IOException {
+        Path file = dir.resolve("status.dat");
+        open(file, 1, 256).put(SCOPE, "alice@example.org", STATUS, 1L);
+
+        // only the first couple of bytes of the deflated status
+        corrupt(file, STATUS_LENGTH, shortBytes(2));
+
+        assertNull(open(file, 1, 256).get(SCOPE, "alice@example.org"));
+    }
+
+    @Test
+    void corruptStatusIsAMiss() throws IOException {
+        Path file = dir.resolve("status.dat");
+        open(file, 1, 256).put(SCOPE, "alice@example.org", STATUS, 1L);
+
+        byte[] garbage = new byte[8];
+        Arrays.fill(garbage, (byte) 0xFF);
+        corrupt(file, RECORD_DATA + SCOPE.length() + "alice@example.org".length(), garbage);
+
+        assertNull(open(file, 1, 256).get(SCOPE, "alice@example.org"));
+    }
+
+    @Test
+    void recordWithClearedMagicIsAMiss() throws IOException {
+        Path file = dir.resolve("status.dat");
+        open(file, 1, 256).put(SCOPE, "alice@example.org", STATUS, 1L);
+
+        // as left by a write that was torn before the magic was set again
+        corrupt(file, FIRST_RECORD, new byte[4]);
+
+        WaldurStatusStore store = open(file, 1, 256);
+        assertNull(store.get(SCOPE, "alice@example.org"));
+        assertEquals(List.of(), store.mostRecent(SCOPE, 10));
+
+        // and the slot can be used again
+        assertTrue(store.put(SCOPE, "bob@example.org", STATUS, 2L));
+        assertNotNull(store.get(SCOPE, "bob@example.org"));
+    }
+
+    @Test
+    void reopenKeepsRecords() throws IOException {
+        Path file = dir.resolve("status.dat");
+        WaldurStatusStore store = open(file, 64, 512);
+
+        List<String> emails = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            emails.add("user" + i + "@example.org");
+            store.put(SCOPE, emails.get(i), STATUS, 1000L + i);
+        }
+
+        store.checkpoint();
+
+        WaldurStatusStore reopened = open(file, 64, 512);
+
+        for (int i = 0; i < 20; i++) {
+            WaldurStatusStore.Entry entry = reopened.get(SCOPE, emails.get(i));
+            assertNotNull(entry);
+            assertEquals(1000L + i, entry.fetched_at);
+            assertEquals(STATUS, entry.status_json);
+        }
+
+        assertEquals("user19@example.org", reopened.mostRecent(SCOPE, 1).get(0));
+    }
+
+    @Test
+    void reopenWithOtherGeometryClears() throws IOException {
+        Path file = dir.resolve("status.dat");
+        WaldurStatusStore store = open(file, 64, 512);
+        store.put(SCOPE, "alice@example.org", STATUS, 1L);
+        store.checkpoint();
+
+        assertNull(open(file, 32, 512).get(SCOPE, "alice@example.org"));
+    }
+
+    @Test
+    void fileIsOwnerOnly() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        Path file = dir.resolve("status.dat");
+        open(file, 16, 256);
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+
+        // an existing file is restricted too
+        Path existing = dir.resolve("existing.dat");
+        Files.createFile(existing, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
+        open(existing, 16, 256);
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(existing)));
+    }
+}
@@ -4,30 +4,35 @@ import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.cache.UserCache;
 import org.keycloak.models.utils.FormMessage;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.util.JsonSerialization;
 
+import uk.ac.isambard.keycloak.tandc.jpa.TandCAcceptanceStore;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import jakarta.transaction.Transactional;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
 
 import org.jboss.logging.Logger;
 
 import java.util.Map;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.time.Duration;
-import java.time.LocalDate;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 public class IsambardTandC implements Authenticator {
@@ -203,11 +208,6 @@ public class IsambardTandC implements Authenticator {
             if (required_seconds < 0) {
                 throw new IllegalArgumentException("required_seconds must be non-negative");
             }
-
-            // make sure that this is one of the valid keys...
-            if (!key.equals("tandc") && !key.equals("ause") && !key.equals("dpriv")) {
-                throw new IllegalArgumentException("key must be one of 'tandc', 'ause', or 'dpriv'");
-            }
         }
 
         public void accept(LocalDateTime accepted_datetime) {
@@ -223,186 +223,112 @@ public class IsambardTandC implements Authenticator {
         }
     }
 
+    /**
+     * The acceptance state of every document in the policy for a single user.
+     *
+     * The items are held in the same order as the documents in the policy, and
+     * the documents the user has already satisfied are tracked as a bitset by
+     * document index, so finding what needs accepting is a single pass however
+     * many documents there are.
+     */
     private static class TandCInfo {
-        private TandCItem tandc;
-        private TandCItem ause;
-        private TandCItem dpriv;
+        private final TandCPolicy policy;
+        private final TandCItem[] items;
+        private long satisfied;
 
-        @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
-        public TandCInfo(
-                @JsonProperty("tandc") TandCItem tandc,
-                @JsonProperty("ause") TandCItem ause,
-                @JsonProperty("dpriv") TandCItem dpriv) {
-
-            this.tandc = tandc;
-            this.ause = ause;
-            this.dpriv = dpriv;
+        public TandCInfo(TandCPolicy policy, TandCItem[] items) {
+            this.policy = policy;
+            this.items = items;
             this.assertSane();
-        }
 
-        @JsonProperty("tandc")
-        public TandCItem getTandC() {
-            return tandc;
+            for (int i = 0; i < items.length; i++) {
+                if (!items[i].needsAccepting()) {
+                    satisfied |= 1L << i;
+                }
+            }
         }
 
-        @JsonProperty("ause")
-        public TandCItem getAcceptableUse() {
-            return ause;
+        @JsonProperty("items")
+        public List<TandCItem> getItems() {
+            return Arrays.asList(items);
         }
 
-        @JsonProperty("dpriv")
-        public TandCItem getDataPrivacy() {
-            return dpriv;
+        /** The bitset of documents that still need accepting */
+        private long pending() {
+            return ~satisfied & policy.getAllMask();
         }
 
         public TandCItem nextToAccept() {
-            if (tandc.needsAccepting()) {
-                if (!tandc.hasStarted()) {
-                    tandc.started();
-                }
+            long pending = pending();
 
-                return tandc;
+            if (pending == 0) {
+                return null;
             }
 
-            if (ause.needsAccepting()) {
-                if (!ause.hasStarted()) {
-                    ause.started();
-                }
+            TandCItem item = items[Long.numberOfTrailingZeros(pending)];
 
-                return ause;
+            if (!item.hasStarted()) {
+                item.started();
             }
 
-            if (dpriv.needsAccepting()) {
-                if (!dpriv.hasStarted()) {
-                    dpriv.started();
+            return item;
+        }
+
+        /**
+         * Returns every item that still needs accepting, starting the timer
+         * of any that have not been started yet
+         */
+        public List<TandCItem> pendingToAccept() {
+            List<TandCItem> pending_items = new ArrayList<>();
+
+            for (long pending = pending(); pending != 0; pending &= pending - 1) {
+                TandCItem item = items[Long.numberOfTrailingZeros(pending)];
+
+                if (!item.hasStarted()) {
+                    item.started();
                 }
 
-                return dpriv;
+                pending_items.add(item);
             }
 
-            return null;
+            return pending_items;
         }
 
         public static TandCInfo load(AuthenticationFlowContext context) {
             UserModel user = context.getUser();
-            Map<String,String> config = context.getAuthenticatorConfig().getConfig();
 
             if (user == null) {
                 return null;
             }
 
-            Map<String, List<String>> userAttributes = user.getAttributes();
-
-            List<String> tandc_accepted = userAttributes.get("tandc_accepted");
-            List<String> ause_accepted = userAttributes.get("ause_accepted");
-            List<String> dpriv_accepted = userAttributes.get("dpriv_accepted");
-
-            // get the latest date of each of these acceptances
-            LocalDateTime latest_tandc_accepted = null;
-
-            if (tandc_accepted != null) {
-                for (String t : tandc_accepted) {
-                    if (t != null) {
-                        // read this string into a LocalDateTime - it was written
-                        // with the ISO_LOCAL_DATE_TIME format
-                        LocalDateTime accepted_datetime = LocalDateTime.parse(t);
-
-                        if (latest_tandc_accepted == null || accepted_datetime.isAfter(latest_tandc_accepted)) {
-                            latest_tandc_accepted = accepted_datetime;
-                        }
-                    }
-                }
-            }
-
-            LocalDateTime latest_ause_accepted = null;
-
-            if (ause_accepted != null) {
-                for (String t : ause_accepted) {
-                    if (t != null) {
-                        // read this string into a LocalDateTime - it was written
-                        // with the ISO_LOCAL_DATE_TIME format
-                        LocalDateTime accepted_datetime = LocalDateTime.parse(t);
-                        if (latest_ause_accepted == null || accepted_datetime.isAfter(latest_ause_accepted)) {
-                            latest_ause_accepted = accepted_datetime;
-                        }
-                    }
-                }
-            }
-
-            LocalDateTime latest_dpriv_accepted = null;
+            TandCPolicy policy = TandCPolicy.get(context.getAuthenticatorConfig());
 
-            if (dpriv_accepted != null) {
-                for (String t : dpriv_accepted) {
-                    if (t != null) {
-                        // read this string into a LocalDateTime - it was written
-                        // with the ISO_LOCAL_DATE_TIME format
-                        LocalDateTime accepted_datetime = LocalDateTime.parse(t);
-                        if (latest_dpriv_accepted == null || accepted_datetime.isAfter(latest_dpriv_accepted)) {
-                            latest_dpriv_accepted = accepted_datetime;
-                        }
-                    }
-                }
-            }
-
-            LocalDateTime tand_last_updated = null;
-
-            if (config.get("tandc.last_updated") != null) {
-                tand_last_updated = LocalDate.parse(config.get("tandc.last_updated")).atStartOfDay();
-            }
-
-            LocalDateTime ause_last_updated = null;
-
-            if (config.get("ause.last_updated") != null) {
-                ause_last_updated = LocalDate.parse(config.get("ause.last_updated")).atStartOfDay();
-            }
-
-            LocalDateTime dpriv_last_updated = null;
-
-            if (config.get("dpriv.last_updated") != null) {
-                dpriv_last_updated = LocalDate.parse(config.get("dpriv.last_updated")).atStartOfDay();
+            if (policy == null) {
+                return null;
             }
 
-            Integer tandc_required_seconds = 0;
+            List<TandCPolicy.Document> documents = policy.getDocuments();
+            TandCItem[] items = new TandCItem[documents.size()];
 
-            if (config.get("tandc.required_seconds") != null) {
-                tandc_required_seconds = Integer.parseInt(config.get("tandc.required_seconds"));
+            for (int i = 0; i < items.length; i++) {
+                items[i] = item(documents.get(i), user);
             }
 
-            Integer ause_required_seconds = 0;
-
-            if (config.get("ause.required_seconds") != null) {
-                ause_required_seconds = Integer.parseInt(config.get("ause.required_seconds"));
-            }
+            return new TandCInfo(policy, items);
+        }
 
-            Integer dpriv_required_seconds = 0;
+        private static TandCItem item(TandCPolicy.Document document, UserModel user) {
+            LocalDateTime last_updated = null;
 
-            if (config.get("dpriv.required_seconds") != null) {
-                dpriv_required_seconds = Integer.parseInt(config.get("dpriv.required_seconds"));
+            if (document.getLastUpdated() != null) {
+                last_updated = document.getLastUpdated().atStartOfDay();
             }
 
-            TandCItem tandc = new TandCItem("tandc", "Access Terms",
-                    config.get("tandc.link"),
-                    tand_last_updated,
-                    latest_tandc_accepted,
-                    tandc_required_seconds);
-
-            TandCItem ause = new TandCItem("ause", "Acceptable Use Policy",
-                    config.get("ause.link"),
-                    ause_last_updated,
-                    latest_ause_accepted,
-                    ause_required_seconds);
-
-            TandCItem dpriv = new TandCItem("dpriv", "Data Privacy Policy",
-                    config.get("dpriv.link"),
-                    dpriv_last_updated,
-                    latest_dpriv_accepted,
-                    dpriv_required_seconds);
-
-            TandCInfo info = new TandCInfo(tandc, ause, dpriv);
-
-            info.assertSane();
-
-            return info;
+            return new TandCItem(document.getKey(), document.getType(),
+                    document.getLink(),
+                    last_updated,
+                    latestAccepted(user, document.getKey()),
+                    document.getRequiredSeconds());
         }
 
         public void accept(TandCItem item, LocalDateTime accepted_datetime) {
@@ -411,42 +337,30 @@ public class IsambardTandC implements Authenticator {
                 throw new IllegalArgumentException("Cannot accept item with null key");
             }
 
-            item.accept(accepted_datetime);
+            TandCPolicy.Document document = policy.getDocument(item.getKey());
 
-            if (tandc != null && item.getKey().contentEquals(tandc.getKey())) {
-                tandc = item;
-            } else if (ause != null && item.getKey().contentEquals(ause.getKey())) {
-                ause = item;
-            } else if (dpriv != null && item.getKey().contentEquals(dpriv.getKey())) {
-                dpriv = item;
-            } else {
+            if (document == null || items[document.getIndex()] != item) {
                 logger.error("Could not update item: " + item.getKey());
                 throw new IllegalArgumentException("Could not update item: " + item.getKey());
             }
+
+            item.accept(accepted_datetime);
+            satisfied |= 1L << document.getIndex();
         }
 
         public void assertSane() {
-            if (tandc != null) {
-                tandc.assertSane();
-                if (! tandc.getKey().contentEquals("tandc")) {
-                    logger.error("tandc key must be 'tandc' " + tandc.getKey() + " " + tandc.toString());
-                    throw new IllegalArgumentException("tandc key must be 'tandc'");
-                }
-            }
+            List<TandCPolicy.Document> documents = policy.getDocuments();
 
-            if (ause != null) {
-                ause.assertSane();
-                if (! ause.getKey().contentEquals("ause")) {
-                    logger.error("ause key must be 'ause' " + ause.getKey() + " " + ause.toString());
-                    throw new IllegalArgumentException("ause key must be 'ause'");
-                }
+            if (items.length != documents.size()) {
+                throw new IllegalArgumentException("expected " + documents.size() + " items, not " + items.length);
             }
 
-            if (dpriv != null) {
-                dpriv.assertSane();
-                if (! dpriv.getKey().contentEquals("dpriv")) {
-                    logger.error("dpriv key must be 'dpriv' " + dpriv.getKey() + " " + dpriv.toString());
-                    throw new IllegalArgumentException("dpriv key must be 'dpriv'");
+            for (int i = 0; i < items.length; i++) {
+                items[i].assertSane();
+
+                if (!items[i].getKey().contentEquals(documents.get(i).getKey())) {
+                    logger.error("item " + i + " key must be '" + documents.get(i).getKey() + "' " + items[i].toString());
+                    throw new IllegalArgumentException("item " + i + " key must be '" + documents.get(i).getKey() + "'");
                 }
             }
         }
@@ -463,45 +377,269 @@ public class IsambardTandC implements Authenticator {
             }
         }
 
-        public static TandCInfo fromString(String s) {
-            // create a TandCInfo from a JSON-encoded string
+        private static String epochString(LocalDateTime datetime) {
+            return datetime == null ? "" : String.valueOf(toEpochSecond(datetime));
+        }
+
+        private static LocalDateTime parseEpochString(String value) {
+            return value.isEmpty() ? null : fromEpochSecond(Long.parseLong(value));
+        }
+
+        /**
+         * Encodes only the per-user state of this info for storing as an auth note,
+         * i.e. the start and accepted epoch seconds of each document, in the order of
+         * the documents in the policy, e.g. "1717171717,;,1700000000;,". Everything
+         * else is rebuilt from the compiled policy by fromNote.
+         */
+        public String toNote() {
+            StringBuilder note = new StringBuilder();
+
+            for (TandCItem item : items) {
+                if (note.length() > 0) {
+                    note.append(';');
+                }
+
+                note.append(epochString(item.getStartTime())).append(',').append(epochString(item.getLastAccepted()));
+            }
+
+            return note.toString();
+        }
+
+        /**
+         * Rebuilds a TandCInfo from an auth note written by toNote and the policy
+         */
+        public static TandCInfo fromNote(String note, TandCPolicy policy) {
             try {
-                TandCInfo info = JsonSerialization.readValue(s, TandCInfo.class);
-                info.assertSane();
-                return info;
+                String[] states = note.split(";", -1);
+                List<TandCPolicy.Document> documents = policy.getDocuments();
+
+                if (states.length != documents.size()) {
+                    // the policy has changed since this note was written
+                    logger.error("TandCInfo note does not match the T&C policy");
+                    return null;
+                }
+
+                TandCItem[] items = new TandCItem[states.length];
+
+                for (int i = 0; i < states.length; i++) {
+                    String[] times = states[i].split(",", -1);
+                    TandCPolicy.Document document = documents.get(i);
+
+                    LocalDateTime last_updated = null;
+
+                    if (document.getLastUpdated() != null) {
+                        last_updated = document.getLastUpdated().atStartOfDay();
+                    }
+
+                    items[i] = new TandCItem(document.getKey(), document.getType(), document.getLink(),
+                            parseEpochString(times[0]),
+                            last_updated,
+                            parseEpochString(times[1]),
+                            document.getRequiredSeconds());
+                }
+
+                return new TandCInfo(policy, items);
             } catch (Exception e) {
-                logger.error("Could not load TandCInfo from string: " + e.getMessage());
+                logger.error("Could not load TandCInfo from note: " + e.getMessage());
                 return null;
             }
         }
     }
 
+    /**
+     * Converts a local date time to the epoch seconds stored in the
+     * {key}_latest_accepted attributes
+     */
+    private static long toEpochSecond(LocalDateTime datetime) {
+        return datetime.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    private static LocalDateTime fromEpochSecond(long epoch_second) {
+        return Instant.ofEpochSecond(epoch_second).atZone(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    /**
+     * Returns the time the user last accepted the document with the passed key, or
+     * null if they have never accepted it.
+     *
+     * This reads the single-valued {key}_latest_accepted attribute, so is constant
+     * time however many times the user has accepted. Users who have only accepted
+     * before this attribute existed have it filled in from their {key}_accepted
+     * history the first time this is called.
+     */
+    private static LocalDateTime latestAccepted(UserModel user, String key) {
+        String latest = user.getFirstAttribute(key + "_latest_accepted");
+
+        if (latest != null) {
+            try {
+                return fromEpochSecond(Long.parseLong(latest));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid " + key + "_latest_accepted for " + user.getUsername() + ": " + latest);
+            }
+        }
+
+        // fall back to the full acceptance history
+        LocalDateTime latest_accepted = user.getAttributeStream(key + "_accepted")
+                .filter(t -> t != null)
+                // these were written with the ISO_LOCAL_DATE_TIME format
+                .map(LocalDateTime::parse)
+                .max(LocalDateTime::compareTo)
+                .orElse(null);
+
+        if (latest_accepted != null) {
+            user.setSingleAttribute(key + "_latest_accepted", String.valueOf(toEpochSecond(latest_accepted)));
+        }
+
+        return latest_accepted;
+    }
+
+    /**
+     * User attribute holding the policy version vector that the user last
+     * satisfied, i.e. had accepted every document of
+     */
+    public static final String POLICY_VERSION = "tandc_policy_version";
+
+    /**
+     * Returns whether the user has already accepted every document in the
+     * current version of the policy, with a single attribute comparison.
+     */
+    public static boolean isUpToDate(UserModel user, AuthenticatorConfigModel config) {
+        if (user == null) {
+            return false;
+        }
+
+        TandCPolicy policy = TandCPolicy.get(config);
+
+        return policy != null && policy.getVersion().equals(user.getFirstAttribute(POLICY_VERSION));
+    }
+
+    /**
+     * Called once the user has accepted everything - records the policy
+     * version they have satisfied, so that future logins can skip straight
+     * through, and completes this step.
+     */
+    private void satisfied(AuthenticationFlowContext context) {
+        UserModel user = context.getUser();
+        TandCPolicy policy = TandCPolicy.get(context.getAuthenticatorConfig());
+
+        if (policy != null && !policy.getVersion().equals(user.getFirstAttribute(POLICY_VERSION))) {
+            user.setSingleAttribute(POLICY_VERSION, policy.getVersion());
+        }
+
+        context.success();
+    }
+
     @Override
     public void close() {
     }
 
-    @Transactional
-    protected void recordAccepted(UserModel user, String attribute_key, LocalDateTime date_updated) {
-        Map<String, List<String>> userAttributes = user.getAttributes();
-        List<String> accepted_datetimes = userAttributes.get(attribute_key);
+    /**
+     * Records that the user accepted the documents with the passed keys at the
+     * passed time, in a single pass. Each {key}_latest_accepted attribute that is
+     * older is updated, and the acceptances are added to the append-only acceptance
+     * table with one lookup for those already there, all within the current
+     * Keycloak transaction. UserModel has no bulk attribute update, so each changed
+     * attribute is its own write, but these are flushed together when the
+     * transaction commits and only invalidate the cached user once.
+     *
+     * @return whether every acceptance was recorded on the user
+     */
+    protected boolean recordAccepted(KeycloakSession session, RealmModel realm, UserModel user,
+                                     List<String> keys, LocalDateTime date_updated) {
+        long accepted_at = toEpochSecond(date_updated);
+
+        for (String key : keys) {
+            String latest_key = key + "_latest_accepted";
+            String latest = user.getFirstAttribute(latest_key);
+
+            // keep the latest acceptance as a single value, so that checking
+            // it at login does not depend on the length of the history
+            boolean is_newer = true;
+
+            if (latest != null) {
+                try {
+                    is_newer = accepted_at > Long.parseLong(latest);
+                } catch (NumberFormatException e) {
+                    logger.warn("Replacing invalid " + latest_key + " for " + user.getUsername() + ": " + latest);
+                }
+            }
 
-        if (accepted_datetimes == null) {
-            accepted_datetimes = new ArrayList<String>();
+            if (is_newer) {
+                user.setSingleAttribute(latest_key, String.valueOf(accepted_at));
+            }
         }
 
-        DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+        // the full history goes to the append-only acceptance table
+        TandCAcceptanceStore.recordAll(session, realm, user, keys, accepted_at);
 
-        String accepted_time = formatter.format(date_updated);
+        // verify once that the user now reflects these acceptances
+        for (String key : keys) {
+            String latest = user.getFirstAttribute(key + "_latest_accepted");
 
-        // make sure we haven't set this already
-        for (String t : accepted_datetimes) {
-            if (t.contentEquals(accepted_time)) {
-                return;
+            try {
+                if (latest == null || Long.parseLong(latest) < accepted_at) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
             }
         }
 
-        accepted_datetimes.add(accepted_time);
-        user.setAttribute(attribute_key, accepted_datetimes);
+        return true;
+    }
+
+    /**
+     * Accepts the passed items, records this against the user and then either
+     * challenges for the next item or completes the step.
+     */
+    private void accepted(AuthenticationFlowContext context, TandCInfo tandc_info, List<TandCItem> items,
+                          LocalDateTime now) {
+        AuthenticationSessionModel session = context.getAuthenticationSession();
+        List<String> keys = new ArrayList<>();
+
+        for (TandCItem item : items) {
+            // this has been accepted
+            tandc_info.accept(item, now);
+            keys.add(item.getKey());
+
+            IsambardTandCMetrics.response(item.getKey(), "accept");
+
+            if (item.getStartTime() != null) {
+                IsambardTandCMetrics.timeToAccept(item.getKey(), Duration.between(item.getStartTime(), now));
+            }
+        }
+
+        // record the time of acceptance of every item against the user in one go
+        long record_start = System.nanoTime();
+        boolean recorded = recordAccepted(context.getSession(), context.getRealm(), context.getUser(), keys, now);
+        long record_nanos = System.nanoTime() - record_start;
+
+        for (String key : keys) {
+            IsambardTandCMetrics.recordAccepted(key, record_nanos, recorded);
+        }
+
+        if (!recorded) {
+            logger.error("Could not record acceptance of " + String.join(", ", keys) + " for "
+                    + context.getUser().getUsername());
+            session.removeAuthNote("tandc_info");
+            context.failure(AuthenticationFlowError.INTERNAL_ERROR);
+            return;
+        }
+
+        // get the next item to accept - this will start the timer
+        // for this next item
+        TandCItem next_item = tandc_info.nextToAccept();
+
+        // save the updated tandc_info to the session
+        session.setAuthNote("tandc_info", tandc_info.toNote());
+
+        if (next_item != null) {
+            challenge(context, null, null);
+        } else {
+            // we've finished - everything accepted
+            session.removeAuthNote("tandc_info");
+            satisfied(context);
+        }
     }
 
     protected Response challenge(AuthenticationFlowContext context,
@@ -527,7 +665,12 @@ public class IsambardTandC implements Authenticator {
             return Response.serverError().build();
         }
 
-        TandCInfo tandc_info = TandCInfo.fromString(tandc_info_string);
+        TandCInfo tandc_info = null;
+        TandCPolicy policy = TandCPolicy.get(context.getAuthenticatorConfig());
+
+        if (policy != null) {
+            tandc_info = TandCInfo.fromNote(tandc_info_string, policy);
+        }
 
         if (tandc_info == null) {
             // login failed with internal message
@@ -537,6 +680,10 @@ public class IsambardTandC implements Authenticator {
 
         tandc_info.assertSane();
 
+        if (policy.isSinglePage()) {
+            return challengeAll(context, form, tandc_info);
+        }
+
         // get the next item to accept
         TandCItem next_item = tandc_info.nextToAccept();
 
@@ -570,6 +717,113 @@ public class IsambardTandC implements Authenticator {
         return response;
     }
 
+    /**
+     * Challenges for all of the items that still need accepting on a single page
+     */
+    private Response challengeAll(AuthenticationFlowContext context, LoginFormsProvider form,
+                                  TandCInfo tandc_info) {
+        List<TandCItem> pending = tandc_info.pendingToAccept();
+
+        if (pending.isEmpty()) {
+            // nothing to accept - all done
+            return Response.accepted().build();
+        }
+
+        List<Map<String, Object>> docs = new ArrayList<>();
+        boolean can_really_accept = true;
+        LocalDateTime now = LocalDateTime.now();
+
+        for (TandCItem item : pending) {
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("link", item.getLink());
+            doc.put("type", item.getType());
+            doc.put("hasChanged", item.acceptedState() == AcceptedState.NEW_VERSION);
+
+            if (item.getLastUpdated() != null) {
+                doc.put("lastUpdated", item.getLastUpdated().toLocalDate().format(DateTimeFormatter.ISO_LOCAL_DATE));
+            }
+
+            // can only really accept once every item has been open for 5 seconds
+            if (Duration.between(item.getStartTime(), now).getSeconds() <= 5) {
+                can_really_accept = false;
+            }
+
+            docs.add(doc);
+        }
+
+        Response response = form
+                .setAttribute("docs", docs)
+                .setAttribute("docTypes", docTypes(pending))
+                .setAttribute("canReallyAccept", can_really_accept)
+                .createForm("tandc_multi_form.ftl");
+        context.challenge(response);
+
+        return response;
+    }
+
+    /**
+     * Returns the types of the passed items as a readable list, e.g.
+     * "Access Terms, Acceptable Use Policy and Data Privacy Policy"
+     */
+    private static String docTypes(List<TandCItem> items) {
+        StringBuilder types = new StringBuilder();
+
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                types.append(i == items.size() - 1 ? " and " : ", ");
+            }
+
+            types.append(items.get(i).getType());
+        }
+
+        return types.toString();
+    }
+
+    /**
+     * Handles the response to the single page form, accepting every pending
+     * item in one go if each has been open for long enough
+     */
+    private void actionAll(AuthenticationFlowContext context, TandCInfo tandc_info, String enteredResponse) {
+        List<TandCItem> pending = tandc_info.pendingToAccept();
+        LocalDateTime now = LocalDateTime.now();
+
+        boolean really = enteredResponse.contentEquals("really accept");
+
+        if (!really && !enteredResponse.contentEquals("accept")) {
+            // they didn't accept
+            for (TandCItem item : pending) {
+                IsambardTandCMetrics.response(item.getKey(), "reject");
+            }
+
+            challenge(context, "You must accept the " + docTypes(pending) + " to continue.", "response");
+            return;
+        }
+
+        // every document must have been open for its own required time
+        List<TandCItem> unread = new ArrayList<>();
+        int min_seconds = Integer.MAX_VALUE;
+
+        for (TandCItem item : pending) {
+            int accept_seconds = (int) Duration.between(item.getStartTime(), now).getSeconds();
+            int required_seconds = really ? 5 : item.getRequiredSeconds();
+
+            if (accept_seconds < required_seconds) {
+                unread.add(item);
+                IsambardTandCMetrics.earlyAccept(item.getKey());
+                min_seconds = Math.min(min_seconds, accept_seconds);
+            }
+        }
+
+        if (!unread.isEmpty()) {
+            // they haven't read them all
+            challenge(context, "It has only been " + min_seconds + " seconds since you opened the "
+                    + docTypes(unread) + ".<br/>Are you sure you have read and understood them fully?", "response");
+            return;
+        }
+
+        accepted(context, tandc_info, pending, now);
+    }
+
     @Override
     public void action(AuthenticationFlowContext context) {
         AuthenticationSessionModel session = context.getAuthenticationSession();
@@ -583,7 +837,12 @@ public class IsambardTandC implements Authenticator {
             return;
         }
 
-        TandCInfo tandc_info = TandCInfo.fromString(tandc_info_string);
+        TandCInfo tandc_info = null;
+        TandCPolicy policy = TandCPolicy.get(context.getAuthenticatorConfig());
+
+        if (policy != null) {
+            tandc_info = TandCInfo.fromNote(tandc_info_string, policy);
+        }
 
         if (tandc_info == null) {
             logger.error("TandCInfo could not be loaded from session");
@@ -599,7 +858,7 @@ public class IsambardTandC implements Authenticator {
         if (next_item == null) {
             // nothing left to accept - all done
             session.removeAuthNote("tandc_info");
-            context.success();
+            satisfied(context);
             return;
         }
 
@@ -608,6 +867,7 @@ public class IsambardTandC implements Authenticator {
         if (formData != null)
         {
             if (formData.containsKey("cancel")) {
+                IsambardTandCMetrics.response(next_item.getKey(), "cancel");
                 session.removeAuthNote("tandc_info");
                 context.resetFlow();
                 return;
@@ -619,6 +879,11 @@ public class IsambardTandC implements Authenticator {
                 // lower case and clean up the response
                 enteredResponse = enteredResponse.toLowerCase().trim();
 
+                if (policy.isSinglePage()) {
+                    actionAll(context, tandc_info, enteredResponse);
+                    return;
+                }
+
                 LocalDateTime now = LocalDateTime.now();
 
                 if (enteredResponse.contentEquals("accept")) {
@@ -627,87 +892,30 @@ public class IsambardTandC implements Authenticator {
 
                     if (accept_seconds < next_item.getRequiredSeconds()) {
                         // they haven't read it
+                        IsambardTandCMetrics.earlyAccept(next_item.getKey());
                         challenge(context, "It has only been " + accept_seconds
                                 + " seconds.<br/>Are you sure you have read and understood it fully?", "response");
                         return;
                     }
 
-                    // this has been accepted
-                    tandc_info.accept(next_item, now);
-
-                    // record the time of acceptance in the user model as an attribute
-                    UserModel user = context.getUser();
-                    recordAccepted(user, next_item.getKey() + "_accepted", now);
-
-                    // make sure to evict the user from the cache - this should
-                    // (hopefully) force the write
-                    KeycloakSession keycloakSession = context.getSession();
-                    UserCache cache = keycloakSession.getProvider(UserCache.class);
-                    cache.evict(context.getRealm(), user);
-
-                    // re-fetch the user and set again, just to be sure
-                    user = keycloakSession.users().getUserById(context.getRealm(), user.getId());
-                    recordAccepted(user, next_item.getKey() + "_accepted", now);
-
-                    // get the next item to accept - this will start the timer
-                    // for this next item
-                    next_item = tandc_info.nextToAccept();
-
-                    // save the updated tandc_info to the session
-                    session.setAuthNote("tandc_info", tandc_info.toString());
-
-                    if (next_item != null) {
-                        challenge(context, null, null);
-                    } else {
-                        // we've finished - everything accepted
-                        session.removeAuthNote("tandc_info");
-                        context.success();
-                    }
+                    accepted(context, tandc_info, Collections.singletonList(next_item), now);
                     return;
                 } else if (enteredResponse.contentEquals("really accept")) {
                     // was this more than 5 seconds since the start time?
                     int accept_seconds = (int) Duration.between(next_item.getStartTime(), now).getSeconds();
 
                     if (accept_seconds < 5) {
+                        IsambardTandCMetrics.earlyAccept(next_item.getKey());
                         challenge(context, "It has only been " + accept_seconds
                                 + " seconds.<br/>Are you sure you have read and understood it fully?", "response");
                         return;
                     }
 
-                    // this has been accepted
-                    tandc_info.accept(next_item, now);
-
-                    // record the time of acceptance in the user model as an attribute
-                    UserModel user = context.getUser();
-                    recordAccepted(user, next_item.getKey() + "_accepted", now);
-
-                    // make sure to evict the user from the cache - this should
-                    // (hopefully) force the write
-                    KeycloakSession keycloakSession = context.getSession();
-                    UserCache cache = keycloakSession.getProvider(UserCache.class);
-                    cache.evict(context.getRealm(), user);
-
-                    // re-fetch the user and set again, just to be sure
-                    user = keycloakSession.users().getUserById(context.getRealm(), user.getId());
-                    recordAccepted(user, next_item.getKey() + "_accepted", now);
-
-                    // get the next item to accept - this will start the timer
-                    // for this next item
-                    next_item = tandc_info.nextToAccept();
-
-                    // save the updated tandc_info to the session
-                    session.setAuthNote("tandc_info", tandc_info.toString());
-
-                    if (next_item != null) {
-                        challenge(context, null, null);
-                    } else {
-                        // we've finished - everything accepted
-                        session.removeAuthNote("tandc_info");
-                        context.success();
-                    }
+                    accepted(context, tandc_info, Collections.singletonList(next_item), now);
                     return;
                 } else {
                     // they didn't accept
+                    IsambardTandCMetrics.response(next_item.getKey(), "reject");
                     challenge(context, "You must accept the " + next_item.getType() + " to continue.", "response");
                     return;
                 }
@@ -715,11 +923,19 @@ public class IsambardTandC implements Authenticator {
         }
 
         // they didn't accept
+        IsambardTandCMetrics.response(next_item.getKey(), "reject");
         challenge(context, "You must accept the " + next_item.getType() + " to continue.", "response");
     }
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
+        // fast path - the user has already accepted this version of every document
+        if (isUpToDate(context.getUser(), context.getAuthenticatorConfig())) {
+            IsambardTandCMetrics.upToDate();
+            context.success();
+            return;
+        }
+
         // load up a TandCInfo object that contains all the information
         // about the user's acceptance of T&Cs
         TandCInfo tandc_info = TandCInfo.load(context);
@@ -732,13 +948,27 @@ public class IsambardTandC implements Authenticator {
 
         tandc_info.assertSane();
 
+        for (TandCItem item : tandc_info.getItems()) {
+            // documents without a link are not in use
+            if (item.getLink() != null) {
+                IsambardTandCMetrics.state(item.getKey(), item.acceptedState().name());
+            }
+        }
+
         // get the next item to accept - this will set the start time
         // for the item if it hasn't already been set
         TandCItem next_item = tandc_info.nextToAccept();
 
         if (next_item != null) {
+            TandCPolicy policy = TandCPolicy.get(context.getAuthenticatorConfig());
+
+            if (policy != null && policy.isSinglePage()) {
+                // all pending items are shown together, so start all of their timers
+                tandc_info.pendingToAccept();
+            }
+
             // write this info to the session and then call challenge
-            String info_string = tandc_info.toString();
+            String info_string = tandc_info.toNote();
 
             if (info_string != null) {
                 context.getAuthenticationSession().setAuthNote("tandc_info", info_string);
@@ -752,7 +982,7 @@ public class IsambardTandC implements Authenticator {
         }
 
         // nothing to accept - all done
-        context.success();
+        satisfied(context);
     }
 
     @Override
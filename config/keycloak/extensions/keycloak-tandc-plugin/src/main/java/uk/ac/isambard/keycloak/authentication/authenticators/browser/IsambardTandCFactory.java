@@ -126,6 +126,27 @@ public class IsambardTandCFactory implements AuthenticatorFactory {
         property.setHelpText(
                 "The number of whole seconds the user must spend before accepting the acceptable use policy.");
         configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName("policy.documents");
+        property.setLabel("Additional documents");
+        property.setType(ProviderConfigProperty.MULTIVALUED_STRING_TYPE);
+        property.setHelpText(
+                "Further documents that users must accept, after those above. Each is written as " +
+                "key|type|link|last_updated|required_seconds, e.g. " +
+                "\"sshpol|SSH Key Policy|https://example.org/ssh|2024-01-31|30\". " +
+                "The key must be unique and use lower case letters, digits and underscores.");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName("tandc.single_page");
+        property.setLabel("Accept all documents on a single page");
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue("false");
+        property.setHelpText(
+                "Show every document that needs accepting on a single page, so that they are accepted " +
+                "together. The time needed to read each document is still enforced.");
+        configProperties.add(property);
     }
 
     @Override
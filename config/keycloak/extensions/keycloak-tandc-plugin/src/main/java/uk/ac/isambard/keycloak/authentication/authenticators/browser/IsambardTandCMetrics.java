@@ -0,0 +1,86 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.browser;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics for the Isambard T&C authenticator, labelled by document key so that
+ * we can see what each document adds to login and what a policy update costs.
+ *
+ * These are registered with the global Micrometer registry, which Keycloak
+ * exposes on its management interface when started with --metrics-enabled=true.
+ */
+final class IsambardTandCMetrics {
+
+    private static final String PREFIX = "isambard.tandc.";
+
+    private IsambardTandCMetrics() {
+    }
+
+    private static MeterRegistry registry() {
+        return Metrics.globalRegistry;
+    }
+
+    /** Record that the step was skipped because the user had satisfied the current policy */
+    static void upToDate() {
+        Counter.builder(PREFIX + "up_to_date")
+                .description("Logins that skipped the T&C step because the policy was already satisfied")
+                .register(registry())
+                .increment();
+    }
+
+    /** Record the acceptance state of a document when the T&C step starts */
+    static void state(String document, String state) {
+        Counter.builder(PREFIX + "states")
+                .description("Acceptance state of each T&C document when the T&C step starts")
+                .tag("document", document)
+                .tag("state", state.toLowerCase())
+                .register(registry())
+                .increment();
+    }
+
+    /** Record the user's response to a document, i.e. accept, reject or cancel */
+    static void response(String document, String result) {
+        Counter.builder(PREFIX + "responses")
+                .description("Responses to the T&C form, by document")
+                .tag("document", document)
+                .tag("result", result)
+                .register(registry())
+                .increment();
+    }
+
+    /** Record that an acceptance was refused because the document had not been open long enough */
+    static void earlyAccept(String document) {
+        Counter.builder(PREFIX + "early_accepts")
+                .description("Acceptances refused because the document was accepted before its required read time")
+                .tag("document", document)
+                .register(registry())
+                .increment();
+    }
+
+    /** Record the time from a document first being shown to it being accepted */
+    static void timeToAccept(String document, Duration duration) {
+        Timer.builder(PREFIX + "time_to_accept")
+                .description("Time from a T&C document first being shown to it being accepted")
+                .tag("document", document)
+                .publishPercentileHistogram()
+                .register(registry())
+                .record(duration);
+    }
+
+    /** Record the latency of recording an acceptance against the user */
+    static void recordAccepted(String document, long duration_nanos, boolean succeeded) {
+        Timer.builder(PREFIX + "record.duration")
+                .description("Latency of recording a T&C acceptance on the user and in the acceptance table")
+                .tag("document", document)
+                .tag("outcome", succeeded ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(registry())
+                .record(duration_nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,342 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.browser;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.Constants;
+
+import org.jboss.logging.Logger;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The T&C policy described by an authenticator config, compiled once into an
+ * immutable object so that logins do not re-parse the dates and read times.
+ *
+ * The policy is a registry of documents. The Access Terms, Acceptable Use Policy
+ * and Data Privacy Policy have their own config properties, and any number of
+ * further documents can be added through the policy.documents property, each as
+ * "key|type|link|last_updated|required_seconds". Each document has a fixed index
+ * in the registry, so that the documents a user has satisfied can be held as a
+ * bitset, which limits a policy to 64 documents.
+ *
+ * Compiled policies are cached by config id, and are recompiled whenever the
+ * content of the config changes (e.g. when an admin edits it). Malformed config
+ * is rejected when it is compiled, rather than failing part way through a login.
+ */
+public final class TandCPolicy {
+
+    private static final Logger logger = Logger.getLogger(TandCPolicy.class);
+
+    /** The most documents a policy can hold, i.e. the number of bits in the bitset */
+    public static final int MAX_DOCUMENTS = Long.SIZE;
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z][a-z0-9_]*");
+
+    /** A single document that users must accept */
+    public static final class Document {
+        private final int index;
+        private final String key;
+        private final String type;
+        private final String link;
+        private final LocalDate last_updated;
+        private final int required_seconds;
+
+        private Document(int index, String key, String type, String link, LocalDate last_updated,
+                         int required_seconds) {
+            this.index = index;
+            this.key = key;
+            this.type = type;
+            this.link = link;
+            this.last_updated = last_updated;
+            this.required_seconds = required_seconds;
+        }
+
+        /** The position of this document in the policy, and its bit in the bitset */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /** The link to the document, or null if this document is not in use */
+        public String getLink() {
+            return link;
+        }
+
+        /** The date this was last updated, or null if never */
+        public LocalDate getLastUpdated() {
+            return last_updated;
+        }
+
+        public int getRequiredSeconds() {
+            return required_seconds;
+        }
+    }
+
+    /** The compiled policy, or the reason the config could not be compiled */
+    private static final class Compiled {
+        private final Map<String, String> config;
+        private final TandCPolicy policy;
+        private final String error;
+
+        private Compiled(Map<String, String> config, TandCPolicy policy, String error) {
+            this.config = config;
+            this.policy = policy;
+            this.error = error;
+        }
+    }
+
+    private static final Map<String, Compiled> cache = new ConcurrentHashMap<>();
+
+    private final List<Document> documents;
+    private final Map<String, Document> by_key;
+    private final boolean has_future_dates;
+    private final String version;
+    private final boolean single_page;
+    private final long all_mask;
+
+    private TandCPolicy(List<Document> documents, boolean single_page) {
+        this.documents = Collections.unmodifiableList(documents);
+        this.single_page = single_page;
+        this.all_mask = documents.size() == MAX_DOCUMENTS ? -1L : (1L << documents.size()) - 1;
+
+        Map<String, Document> by_key = new HashMap<>();
+        boolean has_future_dates = false;
+        LocalDate today = LocalDate.now();
+
+        for (Document document : documents) {
+            by_key.put(document.getKey(), document);
+
+            if (document.getLastUpdated() != null && document.getLastUpdated().isAfter(today)) {
+                has_future_dates = true;
+            }
+        }
+
+        this.by_key = Collections.unmodifiableMap(by_key);
+        this.has_future_dates = has_future_dates;
+        this.version = has_future_dates ? null : computeVersion(today);
+    }
+
+    public List<Document> getDocuments() {
+        return documents;
+    }
+
+    public Document getDocument(String key) {
+        return by_key.get(key);
+    }
+
+    /** The bitset with a bit set for every document in the policy */
+    public long getAllMask() {
+        return all_mask;
+    }
+
+    /**
+     * Whether all of the documents that need accepting are shown together on
+     * one page, rather than one page per document
+     */
+    public boolean isSinglePage() {
+        return single_page;
+    }
+
+    /**
+     * Returns the version vector of this policy. This lists the effective last
+     * updated date of each document that must be accepted, so it changes whenever
+     * a user may need to re-accept. Dates in the future are treated as today, so
+     * the vector also changes on the day that a future-dated update takes effect.
+     */
+    public String getVersion() {
+        if (has_future_dates) {
+            return computeVersion(LocalDate.now());
+        }
+
+        return version;
+    }
+
+    private String computeVersion(LocalDate today) {
+        StringBuilder version = new StringBuilder();
+
+        for (Document document : documents) {
+            if (document.getLink() == null) {
+                // no document, so nothing to accept
+                continue;
+            }
+
+            String last_updated = "-";
+
+            if (document.getLastUpdated() != null) {
+                LocalDate date = document.getLastUpdated();
+
+                if (date.isAfter(today)) {
+                    date = today;
+                }
+
+                last_updated = date.format(DateTimeFormatter.ISO_LOCAL_DATE);
+            }
+
+            version.append(document.getKey()).append('=').append(last_updated).append(';');
+        }
+
+        return version.toString();
+    }
+
+    private static LocalDate parseDate(String name, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        try {
+            return LocalDate.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be an ISO 8601 date (YYYY-MM-DD), not '" + value + "'");
+        }
+    }
+
+    private static int parseSeconds(String name, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+
+        int seconds;
+
+        try {
+            seconds = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a whole number of seconds, not '" + value + "'");
+        }
+
+        if (seconds < 0) {
+            throw new IllegalArgumentException(name + " must be non-negative");
+        }
+
+        return seconds;
+    }
+
+    private static Document compileDocument(Map<String, String> config, int index, String key, String type) {
+        return new Document(index, key, type,
+                config.get(key + ".link"),
+                parseDate(key + ".last_updated", config.get(key + ".last_updated")),
+                parseSeconds(key + ".required_seconds", config.get(key + ".required_seconds")));
+    }
+
+    /**
+     * Compiles a "key|type|link|last_updated|required_seconds" entry from the
+     * policy.documents property. The last two fields may be left empty.
+     */
+    private static Document compileDocument(String entry, int index) {
+        String[] fields = entry.split("\\|", -1);
+
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("policy.documents entry '" + entry
+                    + "' must be key|type|link|last_updated|required_seconds");
+        }
+
+        String key = fields[0].trim();
+
+        if (!KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("policy.documents key '" + key
+                    + "' must be lower case letters, digits and underscores");
+        }
+
+        String type = fields[1].trim();
+        String link = fields[2].trim();
+
+        if (type.isEmpty() || link.isEmpty()) {
+            throw new IllegalArgumentException("policy.documents entry '" + key + "' needs a type and a link");
+        }
+
+        return new Document(index, key, type, link,
+                parseDate(key + " last_updated", fields[3]),
+                parseSeconds(key + " required_seconds", fields[4]));
+    }
+
+    /**
+     * Compiles the passed config into a policy, throwing an IllegalArgumentException
+     * describing the problem if the config is malformed.
+     */
+    public static TandCPolicy compile(Map<String, String> config) {
+        List<Document> documents = new ArrayList<>();
+        documents.add(compileDocument(config, 0, "tandc", "Access Terms"));
+        documents.add(compileDocument(config, 1, "ause", "Acceptable Use Policy"));
+        documents.add(compileDocument(config, 2, "dpriv", "Data Privacy Policy"));
+
+        String extra = config.get("policy.documents");
+
+        if (extra != null) {
+            Set<String> keys = new HashSet<>();
+
+            for (Document document : documents) {
+                keys.add(document.getKey());
+            }
+
+            for (String entry : Constants.CFG_DELIMITER_PATTERN.split(extra)) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+
+                if (documents.size() == MAX_DOCUMENTS) {
+                    throw new IllegalArgumentException("a policy can have at most " + MAX_DOCUMENTS + " documents");
+                }
+
+                Document document = compileDocument(entry, documents.size());
+
+                if (!keys.add(document.getKey())) {
+                    throw new IllegalArgumentException("document '" + document.getKey() + "' is defined more than once");
+                }
+
+                documents.add(document);
+            }
+        }
+        return new TandCPolicy(documents, Boolean.parseBoolean(config.get("tandc.single_page")));
+    }
+
+    /**
+     * Returns the compiled policy for the passed authenticator config, compiling it
+     * if this is the first time it has been seen or if its content has changed.
+     *
+     * @return the policy, or null if the config is missing or malformed (which is logged
+     *         once, when the config is compiled)
+     */
+    public static TandCPolicy get(AuthenticatorConfigModel config_model) {
+        if (config_model == null || config_model.getConfig() == null) {
+            return null;
+        }
+
+        Map<String, String> config = config_model.getConfig();
+        String id = config_model.getId() != null ? config_model.getId() : config_model.getAlias();
+
+        Compiled compiled = id == null ? null : cache.get(id);
+
+        if (compiled == null || !compiled.config.equals(config)) {
+            Map<String, String> copy = Collections.unmodifiableMap(new HashMap<>(config));
+
+            try {
+                compiled = new Compiled(copy, compile(copy), null);
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid T&C config " + config_model.getAlias() + ": " + e.getMessage());
+                compiled = new Compiled(copy, null, e.getMessage());
+            }
+
+            if (id != null) {
+                cache.put(id, compiled);
+            }
+        }
+
+        return compiled.policy;
+    }
+}
@@ -0,0 +1,60 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.conditional;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.authenticators.conditional.ConditionalAuthenticator;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import uk.ac.isambard.keycloak.authentication.authenticators.browser.IsambardTandC;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Condition that matches when the user has not yet accepted the current version
+ * of the T&C policy. Put the Isambard T&C authenticator in a conditional sub-flow
+ * with this condition and the flow skips it entirely for up-to-date users.
+ */
+public class IsambardTandCCondition implements ConditionalAuthenticator {
+
+    private static final Logger logger = Logger.getLogger(IsambardTandCCondition.class);
+
+    @Override
+    public boolean matchCondition(AuthenticationFlowContext context) {
+        UserModel user = context.getUser();
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+
+        if (user == null || config == null || config.getConfig().get("tandc.config.alias") == null) {
+            // can't tell, so let the T&C authenticator decide
+            return true;
+        }
+
+        String alias = config.getConfig().get("tandc.config.alias");
+        AuthenticatorConfigModel tandc_config = context.getRealm().getAuthenticatorConfigByAlias(alias);
+
+        if (tandc_config == null) {
+            logger.warn("No T&C authenticator config with alias " + alias);
+            return true;
+        }
+
+        return !IsambardTandC.isUpToDate(user, tandc_config);
+    }
+
+    @Override
+    public void action(AuthenticationFlowContext context) {
+    }
+
+    @Override
+    public boolean requiresUser() {
+        return true;
+    }
+
+    @Override
+    public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
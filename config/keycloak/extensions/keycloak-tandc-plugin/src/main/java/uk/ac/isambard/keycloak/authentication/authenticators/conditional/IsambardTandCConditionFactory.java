@@ -0,0 +1,88 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.conditional;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.authenticators.conditional.ConditionalAuthenticator;
+import org.keycloak.authentication.authenticators.conditional.ConditionalAuthenticatorFactory;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+
+import java.util.List;
+import java.util.ArrayList;
+
+public class IsambardTandCConditionFactory implements ConditionalAuthenticatorFactory {
+    public static final String PROVIDER_ID = "conditional-isambard-tandc";
+    public static final IsambardTandCCondition SINGLETON = new IsambardTandCCondition();
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "Condition - Isambard T&C outdated";
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Matches when the user has not accepted the current version of the Isambard Terms and Conditions";
+    }
+
+    @Override
+    public String getReferenceCategory() {
+        return null;
+    }
+
+    @Override
+    public boolean isConfigurable() {
+        return true;
+    }
+
+    @Override
+    public boolean isUserSetupAllowed() {
+        return false;
+    }
+
+    @Override
+    public AuthenticationExecutionModel.Requirement[] getRequirementChoices() {
+        return new AuthenticationExecutionModel.Requirement[] {
+                AuthenticationExecutionModel.Requirement.REQUIRED,
+                AuthenticationExecutionModel.Requirement.DISABLED,
+        };
+    }
+
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
+
+    static {
+        ProviderConfigProperty property;
+        property = new ProviderConfigProperty();
+        property.setName("tandc.config.alias");
+        property.setLabel("T&C config alias");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setHelpText("Alias of the config of the Isambard Terms and Conditions step in the sub-flow.");
+        configProperties.add(property);
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public ConditionalAuthenticator getSingleton() {
+        return SINGLETON;
+    }
+}
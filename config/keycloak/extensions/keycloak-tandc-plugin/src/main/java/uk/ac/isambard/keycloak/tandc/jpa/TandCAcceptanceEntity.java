@@ -0,0 +1,82 @@
+package uk.ac.isambard.keycloak.tandc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * A single acceptance of a T&C document by a user. Rows are only ever added,
+ * giving an audit trail of every acceptance without growing the user's attributes.
+ */
+@Entity
+@Table(name = "ISAMBARD_TANDC_ACCEPTANCE")
+@NamedQueries({
+        @NamedQuery(name = "findTandCAcceptedDocuments",
+                query = "select a.document from TandCAcceptanceEntity a where a.userId = :userId"
+                        + " and a.document in :documents and a.acceptedAt = :acceptedAt"),
+        @NamedQuery(name = "findTandCAcceptancesByUser",
+                query = "select a from TandCAcceptanceEntity a where a.realmId = :realmId"
+                        + " and a.userId = :userId order by a.acceptedAt")
+})
+public class TandCAcceptanceEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "USER_ID", nullable = false)
+    private String userId;
+
+    @Column(name = "DOCUMENT", nullable = false)
+    private String document;
+
+    /** Epoch second at which the document was accepted */
+    @Column(name = "ACCEPTED_AT", nullable = false)
+    private long acceptedAt;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getDocument() {
+        return document;
+    }
+
+    public void setDocument(String document) {
+        this.document = document;
+    }
+
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    public void setAcceptedAt(long acceptedAt) {
+        this.acceptedAt = acceptedAt;
+    }
+}
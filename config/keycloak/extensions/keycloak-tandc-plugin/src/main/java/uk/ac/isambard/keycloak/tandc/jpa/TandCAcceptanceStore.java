@@ -0,0 +1,221 @@
+package uk.ac.isambard.keycloak.tandc.jpa;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only store of T&C acceptances, held in the ISAMBARD_TANDC_ACCEPTANCE
+ * table rather than in ever-growing multivalued user attributes.
+ *
+ * The user only keeps the single-valued {key}_latest_accepted attribute, which
+ * is all that is needed at login.
+ */
+public class TandCAcceptanceStore {
+
+    private static final Logger logger = Logger.getLogger(TandCAcceptanceStore.class);
+
+    private TandCAcceptanceStore() {
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Records that the user accepted the document at the passed epoch second.
+     * Recording the same acceptance twice is a no-op.
+     */
+    public static void record(KeycloakSession session, RealmModel realm, UserModel user,
+                              String document, long accepted_at) {
+        recordAll(session, realm, user, Collections.singletonList(document), accepted_at);
+    }
+
+    /**
+     * Records that the user accepted each of the passed documents at the passed
+     * epoch second, with a single query for those already recorded followed by an
+     * insert for each of the rest. Recording the same acceptance twice is a no-op.
+     */
+    public static void recordAll(KeycloakSession session, RealmModel realm, UserModel user,
+                                 List<String> documents, long accepted_at) {
+        if (documents.isEmpty()) {
+            return;
+        }
+
+        EntityManager em = em(session);
+
+        Set<String> existing = new HashSet<>(em.createNamedQuery("findTandCAcceptedDocuments", String.class)
+                .setParameter("userId", user.getId())
+                .setParameter("documents", documents)
+                .setParameter("acceptedAt", accepted_at)
+                .getResultList());
+
+        for (String document : documents) {
+            if (!existing.add(document)) {
+                continue;
+            }
+
+            TandCAcceptanceEntity entity = new TandCAcceptanceEntity();
+            entity.setId(KeycloakModelUtils.generateId());
+            entity.setRealmId(realm.getId());
+            entity.setUserId(user.getId());
+            entity.setDocument(document);
+            entity.setAcceptedAt(accepted_at);
+            em.persist(entity);
+        }
+    }
+
+    /**
+     * Returns every recorded acceptance for the user, oldest first
+     */
+    public static List<TandCAcceptanceEntity> history(KeycloakSession session, RealmModel realm, UserModel user) {
+        return em(session).createNamedQuery("findTandCAcceptancesByUser", TandCAcceptanceEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", user.getId())
+                .getResultList();
+    }
+
+    /**
+     * Moves the user's {document}_accepted attribute history into the audit store,
+     * making sure {document}_latest_accepted is set, and then removes the history
+     * attribute from the user.
+     *
+     * @return the number of acceptances that were migrated
+     */
+    public static int compact(KeycloakSession session, RealmModel realm, UserModel user, String document) {
+        String history_key = document + "_accepted";
+        String latest_key = document + "_latest_accepted";
+
+        List<String> values = user.getAttributeStream(history_key).collect(Collectors.toList());
+
+        if (values.isEmpty()) {
+            return 0;
+        }
+
+        long latest = -1;
+
+        String current_latest = user.getFirstAttribute(latest_key);
+
+        if (current_latest != null) {
+            try {
+                latest = Long.parseLong(current_latest);
+            } catch (NumberFormatException e) {
+                logger.warn("Replacing invalid " + latest_key + " for " + user.getUsername() + ": " + current_latest);
+            }
+        }
+
+        int migrated = 0;
+
+        for (String value : values) {
+            long accepted_at;
+
+            try {
+                // these were written with the ISO_LOCAL_DATE_TIME format
+                accepted_at = LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toEpochSecond();
+            } catch (Exception e) {
+                logger.warn("Skipping invalid " + history_key + " for " + user.getUsername() + ": " + value);
+                continue;
+            }
+
+            record(session, realm, user, document, accepted_at);
+            migrated += 1;
+
+            if (accepted_at > latest) {
+                latest = accepted_at;
+            }
+        }
+
+        if (latest >= 0 && !String.valueOf(latest).equals(current_latest)) {
+            user.setSingleAttribute(latest_key, String.valueOf(latest));
+        }
+
+        user.removeAttribute(history_key);
+
+        return migrated;
+    }
+
+    /**
+     * Returns up to max ids of users in the realm that still have any of the
+     * passed {document}_accepted history attributes, ordered by id and starting
+     * after the passed id (or from the beginning if this is null).
+     */
+    public static List<String> usersWithHistory(KeycloakSession session, RealmModel realm,
+                                                List<String> documents, String after, int max) {
+        List<String> names = documents.stream().map(d -> d + "_accepted").collect(Collectors.toList());
+
+        return em(session).createQuery("select distinct a.user.id from UserAttributeEntity a"
+                        + " where a.user.realmId = :realmId and a.name in :names and a.user.id > :after"
+                        + " order by a.user.id", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("names", names)
+                .setParameter("after", after == null ? "" : after)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    /**
+     * Returns up to max rows of [user id, username, email, latest accepted] for the
+     * users in the realm whose {document}_latest_accepted is before the passed epoch
+     * second, ordered by id and starting after the passed id (or from the beginning
+     * if this is null). Users without a {document}_latest_accepted attribute are not
+     * included, see usersWithoutLatestAccepted.
+     *
+     * This filters on the attribute name and value, so is served by Keycloak's index
+     * on user attributes rather than loading every user. Epoch seconds have ten digits
+     * from 2001 until 2286, so comparing the values as strings orders them by time.
+     */
+    public static List<Object[]> usersAcceptedBefore(KeycloakSession session, RealmModel realm,
+                                                     String document, long before, String after, int max) {
+        return em(session).createQuery("select a.user.id, a.user.username, a.user.email, a.value"
+                        + " from UserAttributeEntity a"
+                        + " where a.name = :name and a.value < :before"
+                        + " and a.user.realmId = :realmId and a.user.id > :after"
+                        + " order by a.user.id", Object[].class)
+                .setParameter("name", document + "_latest_accepted")
+                .setParameter("before", String.valueOf(before))
+                .setParameter("realmId", realm.getId())
+                .setParameter("after", after == null ? "" : after)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    /**
+     * Returns up to max rows of [user id, username, email, latest history value] for
+     * the users in the realm that have no {document}_latest_accepted attribute,
+     * ordered by id and starting after the passed id (or from the beginning if this
+     * is null). These are users who have never accepted the document, and users who
+     * accepted it before the attribute existed and have not been compacted, for whom
+     * the latest value of their {document}_accepted history is returned (in the
+     * ISO_LOCAL_DATE_TIME format it was written in), or null if there is none.
+     * Service account users are not included.
+     */
+    public static List<Object[]> usersWithoutLatestAccepted(KeycloakSession session, RealmModel realm,
+                                                            String document, String after, int max) {
+        return em(session).createQuery("select u.id, u.username, u.email,"
+                        + " (select max(h.value) from UserAttributeEntity h where h.user = u and h.name = :history)"
+                        + " from UserEntity u"
+                        + " where u.realmId = :realmId and u.id > :after and u.serviceAccountClientLink is null"
+                        + " and not exists (select a from UserAttributeEntity a where a.user = u and a.name = :name)"
+                        + " order by u.id", Object[].class)
+                .setParameter("history", document + "_accepted")
+                .setParameter("name", document + "_latest_accepted")
+                .setParameter("realmId", realm.getId())
+                .setParameter("after", after == null ? "" : after)
+                .setMaxResults(max)
+                .getResultList();
+    }
+}
@@ -0,0 +1,28 @@
+package uk.ac.isambard.keycloak.tandc.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.Collections;
+import java.util.List;
+
+public class TandCJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return Collections.<Class<?>>singletonList(TandCAcceptanceEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/isambard-tandc-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return TandCJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
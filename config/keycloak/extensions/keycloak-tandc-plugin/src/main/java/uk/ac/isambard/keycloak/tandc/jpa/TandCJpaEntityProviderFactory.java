@@ -0,0 +1,35 @@
+package uk.ac.isambard.keycloak.tandc.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class TandCJpaEntityProviderFactory implements JpaEntityProviderFactory {
+    public static final String PROVIDER_ID = "isambard-tandc-entity-provider";
+
+    private static final TandCJpaEntityProvider SINGLETON = new TandCJpaEntityProvider();
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return SINGLETON;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
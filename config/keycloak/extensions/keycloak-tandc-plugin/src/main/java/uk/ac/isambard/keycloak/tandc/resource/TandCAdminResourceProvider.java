@@ -0,0 +1,330 @@
+package uk.ac.isambard.keycloak.tandc.resource;
+
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.util.JsonSerialization;
+
+import uk.ac.isambard.keycloak.authentication.authenticators.browser.TandCPolicy;
+import uk.ac.isambard.keycloak.tandc.jpa.TandCAcceptanceStore;
+
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admin endpoints for the Isambard T&C authenticator, available at
+ * /realms/{realm}/isambard-tandc. Callers need a bearer token for a user
+ * in the realm with the realm-management manage-users role.
+ */
+public class TandCAdminResourceProvider implements RealmResourceProvider {
+
+    private static final Logger logger = Logger.getLogger(TandCAdminResourceProvider.class);
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    // only these documents existed when acceptances were kept in {document}_accepted
+    // attributes, so documents added to a policy since never have any history to compact
+    private static final List<String> DOCUMENTS = Arrays.asList("tandc", "ause", "dpriv");
+
+    private final KeycloakSession session;
+
+    public TandCAdminResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Returns null if the caller may use these endpoints, or the error response to return
+     */
+    private Response checkAdmin() {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+
+        if (auth == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+        ClientModel realm_management = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+
+        if (realm_management == null
+                || !auth.getUser().hasRole(realm_management.getRole(AdminRoles.MANAGE_USERS))) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        return null;
+    }
+
+    /**
+     * One-off job that moves every user's {document}_accepted history attributes
+     * into the append-only acceptance table, leaving only {document}_latest_accepted
+     * on the user. Users are processed in batches, each in its own transaction, so
+     * this can safely be re-run if it is interrupted.
+     */
+    @POST
+    @Path("compact")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response compact(@QueryParam("batch") @DefaultValue("100") int batch) {
+        Response denied = checkAdmin();
+
+        if (denied != null) {
+            return denied;
+        }
+
+        if (batch <= 0 || batch > 1000) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("batch must be between 1 and 1000").build();
+        }
+
+        String realm_id = session.getContext().getRealm().getId();
+
+        long users = 0;
+        long acceptances = 0;
+        String after = null;
+
+        while (true) {
+            final String batch_after = after;
+
+            long[] result = new long[2];
+            String last = KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(), s -> {
+                RealmModel realm = s.realms().getRealm(realm_id);
+                s.getContext().setRealm(realm);
+
+                List<String> ids = TandCAcceptanceStore.usersWithHistory(s, realm, DOCUMENTS, batch_after, batch);
+
+                for (String id : ids) {
+                    UserModel user = s.users().getUserById(realm, id);
+
+                    if (user == null) {
+                        continue;
+                    }
+
+                    for (String document : DOCUMENTS) {
+                        result[1] += TandCAcceptanceStore.compact(s, realm, user, document);
+                    }
+
+                    result[0] += 1;
+                }
+
+                return ids.isEmpty() ? null : ids.get(ids.size() - 1);
+            });
+
+            users += result[0];
+            acceptances += result[1];
+
+            if (last == null) {
+                break;
+            }
+
+            after = last;
+        }
+
+        logger.info("Compacted T&C acceptance history of " + users + " users (" + acceptances + " acceptances)");
+
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("users", users);
+        summary.put("acceptances", acceptances);
+
+        return Response.ok(summary).build();
+    }
+
+    /**
+     * Streams, as newline-delimited JSON, every user whose latest acceptance of a
+     * document predates that document's last_updated date in the policy of the
+     * T&C authenticator config with the passed alias, i.e. the users who will be
+     * asked to re-accept at their next login. Future last_updated dates are used
+     * as they are, so this can be run before an update takes effect.
+     *
+     * This includes users without a {document}_latest_accepted attribute: those
+     * who have never accepted the document, with a null latest_accepted, and those
+     * whose acceptance is still only in the {document}_accepted history because
+     * they have not been compacted, if that history is outdated too.
+     *
+     * Users are read a page at a time, each page in its own transaction, and are
+     * written out as they are read, so memory use does not grow with the number
+     * of users. Pass document to only list users for a single document.
+     */
+    @GET
+    @Path("outdated")
+    @Produces(NDJSON)
+    public Response outdated(@QueryParam("config") String alias,
+                             @QueryParam("document") String document_key,
+                             @QueryParam("page") @DefaultValue("500") int page) {
+        Response denied = checkAdmin();
+
+        if (denied != null) {
+            return denied;
+        }
+
+        if (page <= 0 || page > 1000) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("page must be between 1 and 1000").build();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+
+        if (alias == null || realm.getAuthenticatorConfigByAlias(alias) == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity("no T&C authenticator config called " + alias).build();
+        }
+
+        TandCPolicy policy = TandCPolicy.get(realm.getAuthenticatorConfigByAlias(alias));
+
+        if (policy == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("the T&C config " + alias + " is not valid").build();
+        }
+
+        List<TandCPolicy.Document> documents = new ArrayList<>();
+
+        for (TandCPolicy.Document document : policy.getDocuments()) {
+            // documents that are not in use, or have never been updated, cannot be outdated
+            if (document.getLink() == null || document.getLastUpdated() == null) {
+                continue;
+            }
+
+            if (document_key == null || document_key.equals(document.getKey())) {
+                documents.add(document);
+            }
+        }
+
+        if (document_key != null && documents.isEmpty()) {
+            return Response.status(Response.Status.NOT_FOUND).entity("no updated document called " + document_key).build();
+        }
+
+        String realm_id = realm.getId();
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+
+        StreamingOutput stream = output -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+            for (TandCPolicy.Document document : documents) {
+                long before = document.getLastUpdated().atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+                String last_updated = document.getLastUpdated().format(DateTimeFormatter.ISO_LOCAL_DATE);
+                String after = null;
+
+                while (true) {
+                    final String page_after = after;
+
+                    List<Object[]> rows = KeycloakModelUtils.runJobInTransactionWithResult(factory, s ->
+                            TandCAcceptanceStore.usersAcceptedBefore(s, s.realms().getRealm(realm_id),
+                                    document.getKey(), before, page_after, page));
+
+                    for (Object[] row : rows) {
+                        Map<String, Object> line = new LinkedHashMap<>();
+                        line.put("id", row[0]);
+                        line.put("username", row[1]);
+                        line.put("email", row[2]);
+                        line.put("document", document.getKey());
+                        line.put("latest_accepted", row[3]);
+                        line.put("last_updated", last_updated);
+
+                        writer.write(JsonSerialization.writeValueAsString(line));
+                        writer.write('\n');
+                    }
+
+                    writer.flush();
+
+                    if (rows.size() < page) {
+                        break;
+                    }
+
+                    after = (String) rows.get(rows.size() - 1)[0];
+                }
+
+                after = null;
+
+                while (true) {
+                    final String page_after = after;
+
+                    List<Object[]> rows = KeycloakModelUtils.runJobInTransactionWithResult(factory, s ->
+                            TandCAcceptanceStore.usersWithoutLatestAccepted(s, s.realms().getRealm(realm_id),
+                                    document.getKey(), page_after, page));
+
+                    for (Object[] row : rows) {
+                        Long latest_accepted = historyEpochSecond((String) row[3]);
+
+                        if (latest_accepted != null && latest_accepted >= before) {
+                            // accepted since the update, so this user is not outdated
+                            continue;
+                        }
+
+                        Map<String, Object> line = new LinkedHashMap<>();
+                        line.put("id", row[0]);
+                        line.put("username", row[1]);
+                        line.put("email", row[2]);
+                        line.put("document", document.getKey());
+                        line.put("latest_accepted", latest_accepted == null ? null : String.valueOf(latest_accepted));
+                        line.put("last_updated", last_updated);
+
+                        writer.write(JsonSerialization.writeValueAsString(line));
+                        writer.write('\n');
+                    }
+
+                    writer.flush();
+
+                    if (rows.size() < page) {
+                        break;
+                    }
+
+                    after = (String) rows.get(rows.size() - 1)[0];
+                }
+            }
+
+            writer.flush();
+        };
+
+        return Response.ok(stream).build();
+    }
+
+    /**
+     * Returns the epoch second of a {document}_accepted history value, or null if
+     * there is none or it is not valid
+     */
+    private static Long historyEpochSecond(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            // these were written with the ISO_LOCAL_DATE_TIME format
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toEpochSecond();
+        } catch (Exception e) {
+            logger.warn("Ignoring invalid T&C acceptance history value: " + value);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,172 @@
+package uk.ac.isambard.keycloak.authentication.authenticators.browser;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TandCPolicyTest {
+
+    private static Map<String, String> config() {
+        Map<String, String> config = new HashMap<>();
+        config.put("tandc.link", "https://example.org/tandc");
+        config.put("tandc.last_updated", "2025-01-01");
+        config.put("tandc.required_seconds", "30");
+        config.put("ause.link", "https://example.org/ause");
+        config.put("ause.last_updated", "2025-02-01");
+        return config;
+    }
+
+    private static TandCPolicy compileWithDocuments(String documents) {
+        Map<String, String> config = config();
+        config.put("policy.documents", documents);
+        return TandCPolicy.compile(config);
+    }
+
+    @Test
+    void builtInDocuments() {
+        TandCPolicy policy = TandCPolicy.compile(config());
+        List<TandCPolicy.Document> documents = policy.getDocuments();
+
+        assertEquals(3, documents.size());
+        assertEquals(0b111L, policy.getAllMask());
+        assertFalse(policy.isSinglePage());
+
+        TandCPolicy.Document tandc = policy.getDocument("tandc");
+        assertEquals(0, tandc.getIndex());
+        assertEquals("Access Terms", tandc.getType());
+        assertEquals("https://example.org/tandc", tandc.getLink());
+        assertEquals(LocalDate.of(2025, 1, 1), tandc.getLastUpdated());
+        assertEquals(30, tandc.getRequiredSeconds());
+
+        assertEquals(1, policy.getDocument("ause").getIndex());
+        assertEquals(0, policy.getDocument("ause").getRequiredSeconds());
+
+        TandCPolicy.Document dpriv = policy.getDocument("dpriv");
+        assertEquals(2, dpriv.getIndex());
+        assertNull(dpriv.getLink());
+        assertNull(dpriv.getLastUpdated());
+    }
+
+    @Test
+    void versionListsDocumentsWithLinks() {
+        assertEquals("tandc=2025-01-01;ause=2025-02-01;", TandCPolicy.compile(config()).getVersion());
+
+        Map<String, String> config = config();
+        config.remove("ause.last_updated");
+        assertEquals("tandc=2025-01-01;ause=-;", TandCPolicy.compile(config).getVersion());
+    }
+
+    @Test
+    void futureDatesAreTreatedAsToday() {
+        Map<String, String> config = config();
+        config.put("ause.last_updated", LocalDate.now().plusDays(30).toString());
+
+        assertEquals("tandc=2025-01-01;ause=" + LocalDate.now() + ";", TandCPolicy.compile(config).getVersion());
+    }
+
+    @Test
+    void singlePage() {
+        Map<String, String> config = config();
+        config.put("tandc.single_page", "true");
+
+        assertTrue(TandCPolicy.compile(config).isSinglePage());
+    }
+
+    @Test
+    void extraDocuments() {
+        TandCPolicy policy = compileWithDocuments(
+                "ai_policy|AI Policy|https://example.org/ai|2025-03-01|60"
+                + "##export| Export Controls | https://example.org/export ||");
+
+        assertEquals(5, policy.getDocuments().size());
+        assertEquals(0b11111L, policy.getAllMask());
+
+        TandCPolicy.Document ai = policy.getDocument("ai_policy");
+        assertEquals(3, ai.getIndex());
+        assertEquals("AI Policy", ai.getType());
+        assertEquals("https://example.org/ai", ai.getLink());
+        assertEquals(LocalDate.of(2025, 3, 1), ai.getLastUpdated());
+        assertEquals(60, ai.getRequiredSeconds());
+
+        TandCPolicy.Document export = policy.getDocument("export");
+        assertEquals(4, export.getIndex());
+        assertEquals("Export Controls", export.getType());
+        assertEquals("https://example.org/export", export.getLink());
+        assertNull(export.getLastUpdated());
+        assertEquals(0, export.getRequiredSeconds());
+
+        assertEquals("tandc=2025-01-01;ause=2025-02-01;ai_policy=2025-03-01;export=-;", policy.getVersion());
+    }
+
+    @Test
+    void emptyEntriesAreSkipped() {
+        TandCPolicy policy = compileWithDocuments("##ai_policy|AI Policy|https://example.org/ai||## ");
+
+        assertEquals(4, policy.getDocuments().size());
+    }
+
+    @Test
+    void maxDocuments() {
+        StringBuilder documents = new StringBuilder();
+
+        for (int i = 3; i < TandCPolicy.MAX_DOCUMENTS; i++) {
+            documents.append("doc").append(i).append("|Document|https://example.org/").append(i).append("||##");
+        }
+
+        TandCPolicy policy = compileWithDocuments(documents.toString());
+        assertEquals(TandCPolicy.MAX_DOCUMENTS, policy.getDocuments().size());
+        assertEquals(-1L, policy.getAllMask());
+
+        documents.append("one_more|Document|https://example.org/more||");
+        assertThrows(IllegalArgumentException.class, () -> compileWithDocuments(documents.toString()));
+    }
+
+    @Test
+    void duplicateKeysAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> compileWithDocuments(
+                "ai_policy|AI Policy|https://example.org/ai||##ai_policy|AI Policy|https://example.org/ai2||"));
+
+        assertThrows(IllegalArgumentException.class, () -> compileWithDocuments(
+                "tandc|Access Terms|https://example.org/tandc2||"));
+    }
+
+    @Test
+    void malformedEntriesAreRejected() {
+        String[] entries = {
+                "ai_policy|AI Policy|https://example.org/ai",
+                "ai_policy|AI Policy|https://example.org/ai|||",
+                "AI|AI Policy|https://example.org/ai||",
+                "1st|AI Policy|https://example.org/ai||",
+                "ai-policy|AI Policy|https://example.org/ai||",
+                "ai_policy||https://example.org/ai||",
+                "ai_policy|AI Policy|||",
+                "ai_policy|AI Policy|https://example.org/ai|01/03/2025|",
+                "ai_policy|AI Policy|https://example.org/ai||-1",
+                "ai_policy|AI Policy|https://example.org/ai||a minute"
+        };
+
+        for (String entry : entries) {
+            assertThrows(IllegalArgumentException.class, () -> compileWithDocuments(entry), entry);
+        }
+    }
+
+    @Test
+    void malformedBuiltInsAreRejected() {
+        Map<String, String> date = config();
+        date.put("tandc.last_updated", "yesterday");
+        assertThrows(IllegalArgumentException.class, () -> TandCPolicy.compile(date));
+
+        Map<String, String> seconds = config();
+        seconds.put("ause.required_seconds", "-5");
+        assertThrows(IllegalArgumentException.class, () -> TandCPolicy.compile(seconds));
+    }
+}